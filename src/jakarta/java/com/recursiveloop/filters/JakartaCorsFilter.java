@@ -0,0 +1,169 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Map;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpServletResponseWrapper;
+
+
+/**
+* CorsFilter for containers that implement the jakarta.servlet API, such as Tomcat 10 and later.
+*
+* It takes the same init parameters as CorsFilter and makes the same decisions.
+*/
+public class JakartaCorsFilter implements Filter {
+  private final CorsEngine m_engine = new CorsEngine();
+
+  /**
+  * Adapts a servlet request and response for the engine, reading headers as they are asked for.
+  */
+  private static final class ServletExchange implements CorsRequest, CorsResponse {
+    private final HttpServletRequest m_req;
+    private final HttpServletResponse m_res;
+
+    ServletExchange(HttpServletRequest req, HttpServletResponse res) {
+      m_req = req;
+      m_res = res;
+    }
+
+    @Override
+    public String getMethod() {
+      return m_req.getMethod();
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return m_req.getHeader(name);
+    }
+
+    @Override
+    public String getPath() {
+      return RequestPath.ofServlet(m_req.getServletPath(), m_req.getPathInfo());
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      m_res.setHeader(name, value);
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+      return m_res.getHeaders(name);
+    }
+
+    @Override
+    public void setStatus(int status) {
+      m_res.setStatus(status);
+    }
+  }
+
+  /**
+  * Keeps Origin in Vary when the application replaces the header further down the chain. Adding
+  * Vary values can't drop Origin, so only setHeader is intercepted.
+  */
+  private static final class VaryOriginResponse extends HttpServletResponseWrapper {
+    VaryOriginResponse(HttpServletResponse res) {
+      super(res);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if ("Vary".equalsIgnoreCase(name)) {
+        value = CorsEngine.replaceVary(getHeaders("Vary"), value);
+      }
+
+      super.setHeader(name, value);
+    }
+  }
+
+  /**
+  * Initialises the filter. See CorsFilter.init.
+  */
+  @Override
+  public void init(final FilterConfig config) throws ServletException {
+    Map<String, String> initParams = CorsEngine.params(new CorsEngine.Parameters() {
+      @Override
+      public String getInitParameter(String name) {
+        return config.getInitParameter(name);
+      }
+
+      @Override
+      public Enumeration<String> getInitParameterNames() {
+        return config.getInitParameterNames();
+      }
+    });
+
+    ServletContext context = config.getServletContext();
+    String contextPath = context != null ? context.getContextPath() : null;
+
+    try {
+      m_engine.init(initParams, contextPath, config.getFilterName());
+    } catch (IOException | IllegalArgumentException ex) {
+      throw new ServletException("Invalid CORS configuration", ex);
+    }
+  }
+
+  /**
+  * Modifies the response accordingly and passes it to the next filter in the chain. See
+  * CorsFilter.doFilter.
+  */
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+    throws IOException, ServletException {
+
+    HttpServletRequest req = (HttpServletRequest)request;
+    HttpServletResponse res = (HttpServletResponse)response;
+
+    ServletExchange exchange = new ServletExchange(req, res);
+    if (m_engine.apply(exchange, exchange)) {
+      // Only a response that varies on Origin has an Origin to keep
+      if (CorsEngine.varyWithOrigin(res.getHeaders("Vary")) == null) {
+        res = new VaryOriginResponse(res);
+      }
+
+      chain.doFilter(req, res);
+    }
+  }
+
+  /**
+  * Performs cleanup operations.
+  */
+  @Override
+  public void destroy() {
+    m_engine.destroy();
+  }
+
+  /**
+  * Returns the number of preflights answered from the preflight cache. Filters with the same
+  * configuration share a cache, so this counts their preflights too.
+  */
+  public long getPreflightCacheHits() {
+    return m_engine.getPreflightCacheHits();
+  }
+
+  /**
+  * Returns the number of preflights that had to be evaluated because they were not in the
+  * preflight cache.
+  */
+  public long getPreflightCacheMisses() {
+    return m_engine.getPreflightCacheMisses();
+  }
+}
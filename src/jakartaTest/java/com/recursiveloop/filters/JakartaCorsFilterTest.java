@@ -0,0 +1,121 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import static org.mockito.Mockito.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+
+/**
+* Verifies that com.recursiveloop.filters.JakartaCorsFilter reads its configuration and applies
+* the engine's decisions through the jakarta.servlet API.
+*/
+public class JakartaCorsFilterTest {
+  private JakartaCorsFilter m_filter;
+  private FilterConfig m_config;
+  private HttpServletRequest m_request;
+  private HttpServletResponse m_response;
+  private FilterChain m_chain;
+
+  @Before
+  public void before() {
+    m_filter = new JakartaCorsFilter();
+    m_config = mock(FilterConfig.class);
+    m_request = mock(HttpServletRequest.class);
+    m_response = mock(HttpServletResponse.class);
+    m_chain = mock(FilterChain.class);
+
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn("http://www.example.com");
+    when(m_config.getInitParameter("cors.enforce.actual")).thenReturn("true");
+    when(m_config.getInitParameter("cors.jmx.enabled")).thenReturn("false");
+  }
+
+  @Test
+  public void allowedRequestIsPassedOnWithHeaders() throws IOException, ServletException {
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("http://www.example.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "http://www.example.com");
+    verify(m_chain).doFilter(m_request, m_response);
+  }
+
+  @Test
+  public void rejectedRequestIsForbidden() throws IOException, ServletException {
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("http://evil.example.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    verify(m_chain, never()).doFilter(m_request, m_response);
+  }
+
+  @Test
+  public void policiesAreChosenByTheDispatchedPath() throws IOException, ServletException {
+    // Named policies are only found by listing the init parameters
+    when(m_config.getInitParameter("cors.policies")).thenReturn("public");
+    when(m_config.getInitParameter("cors.policy.public.paths")).thenReturn("/public");
+    when(m_config.getInitParameter("cors.policy.public.allowed.origins")).thenReturn("*");
+    when(m_config.getInitParameterNames()).thenReturn(Collections.enumeration(Arrays.asList(
+      "cors.allowed.origins", "cors.enforce.actual", "cors.policies", "cors.policy.public.paths",
+      "cors.policy.public.allowed.origins")));
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("http://elsewhere.com");
+    when(m_request.getServletPath()).thenReturn("/public");
+    when(m_request.getPathInfo()).thenReturn("/status");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "http://elsewhere.com");
+    verify(m_chain).doFilter(m_request, m_response);
+  }
+
+  @Test
+  public void originIsKeptInVaryWhenTheChainReplacesIt() throws IOException, ServletException {
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("http://www.example.com");
+    when(m_response.getHeaders("Vary")).thenReturn(Arrays.asList("Origin"));
+
+    FilterChain chain = new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) {
+        ((HttpServletResponse)response).setHeader("Vary", "Accept-Encoding");
+      }
+    };
+
+    m_filter.doFilter(m_request, m_response, chain);
+
+    verify(m_response).setHeader("Vary", "Accept-Encoding, Origin");
+  }
+
+  @After
+  public void after() {
+    m_filter.destroy();
+  }
+}
@@ -0,0 +1,147 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+* Measures the throughput of CorsFilter.doFilter on its hot paths.
+*
+* Run with the GC profiler (gradle jmh does this) to report allocation per request.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CorsFilterBenchmark {
+  @Param({"1", "100", "10000", "100000"})
+  public int allowlistSize;
+
+  private CorsFilter m_filter;
+  private StubHttpServletResponse m_response;
+  private StubFilterChain m_chain;
+
+  private StubHttpServletRequest m_nonCors;
+  private StubHttpServletRequest m_actualAllowed;
+  private StubHttpServletRequest m_actualRejected;
+  private StubHttpServletRequest m_preflight1;
+  private StubHttpServletRequest m_preflight10;
+  private StubHttpServletRequest m_preflight50;
+
+  @Setup(Level.Trial)
+  public void setup() throws ServletException {
+    StringBuilder origins = new StringBuilder();
+    for (int i = 0; i < allowlistSize; ++i) {
+      origins.append("https://partner").append(i).append(".example.com,");
+    }
+
+    m_filter = new CorsFilter();
+    m_filter.init(new StubFilterConfig("CorsFilter")
+      .set("cors.allowed.origins", origins.toString())
+      .set("cors.allowed.methods", "GET,POST,HEAD,OPTIONS,PUT,DELETE")
+      .set("cors.allowed.headers", headerList(50))
+      .set("cors.exposed.headers", "X-Total-Count,X-Request-Id")
+      .set("cors.support.credentials", "true")
+      .set("cors.preflight.maxage", "600"));
+
+    m_response = new StubHttpServletResponse();
+    m_chain = new StubFilterChain();
+
+    String allowed = "https://partner" + (allowlistSize - 1) + ".example.com";
+    String rejected = "https://attacker.example.net";
+
+    m_nonCors = new StubHttpServletRequest("GET", "/api/items");
+    m_actualAllowed = new StubHttpServletRequest("GET", "/api/items", "Origin", allowed);
+    m_actualRejected = new StubHttpServletRequest("GET", "/api/items", "Origin", rejected);
+    m_preflight1 = preflight(allowed, 1);
+    m_preflight10 = preflight(allowed, 10);
+    m_preflight50 = preflight(allowed, 50);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    m_filter.destroy();
+  }
+
+  @Benchmark
+  public StubHttpServletResponse nonCors() throws IOException, ServletException {
+    return run(m_nonCors);
+  }
+
+  @Benchmark
+  public StubHttpServletResponse actualAllowed() throws IOException, ServletException {
+    return run(m_actualAllowed);
+  }
+
+  @Benchmark
+  public StubHttpServletResponse actualRejected() throws IOException, ServletException {
+    return run(m_actualRejected);
+  }
+
+  @Benchmark
+  public StubHttpServletResponse preflight1Header() throws IOException, ServletException {
+    return run(m_preflight1);
+  }
+
+  @Benchmark
+  public StubHttpServletResponse preflight10Headers() throws IOException, ServletException {
+    return run(m_preflight10);
+  }
+
+  @Benchmark
+  public StubHttpServletResponse preflight50Headers() throws IOException, ServletException {
+    return run(m_preflight50);
+  }
+
+  private StubHttpServletResponse run(StubHttpServletRequest request)
+    throws IOException, ServletException {
+
+    m_response.reset();
+    m_filter.doFilter(request, m_response, m_chain);
+    return m_response;
+  }
+
+  private static StubHttpServletRequest preflight(String origin, int headerCount) {
+    return new StubHttpServletRequest("OPTIONS", "/api/items",
+      "Origin", origin,
+      "Access-Control-Request-Method", "PUT",
+      "Access-Control-Request-Headers", headerList(headerCount));
+  }
+
+  private static String headerList(int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+
+      sb.append("X-Custom-Header-").append(i);
+    }
+
+    return sb.toString();
+  }
+}
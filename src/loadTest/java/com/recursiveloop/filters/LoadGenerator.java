@@ -0,0 +1,444 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+
+/**
+* Sends a mix of requests to a server from several threads, each on its own keep-alive
+* connection, and records the latency of every response.
+*
+* Requests are written by a minimal HTTP/1.1 client rather than HttpURLConnection, which won't
+* set Origin or the Access-Control-Request headers, and which would add its own overhead to every
+* measurement. Each thread waits for a response before sending its next request, so the load is
+* closed-loop: the latencies are those of a server kept busy, not of one falling behind a fixed
+* arrival rate.
+*/
+final class LoadGenerator {
+  private static final int INITIAL_CAPACITY = 1 << 16;
+
+  /**
+  * The kinds of request in the mix.
+  */
+  enum Kind {
+    PLAIN, ACTUAL, PREFLIGHT
+  }
+
+  private final InetSocketAddress m_address;
+  private final byte[][] m_requests = new byte[Kind.values().length][];
+  private final int[] m_cumulativeWeights = new int[Kind.values().length];
+  private final int m_threads;
+
+  /**
+  * The latencies recorded by one run, and how long it took.
+  */
+  static final class Result {
+    private final long[][] m_latencies;
+    private final long[] m_all;
+    private final long m_errors;
+    private final long m_elapsedNanos;
+
+    Result(long[][] latencies, long errors, long elapsedNanos) {
+      m_latencies = latencies;
+      m_errors = errors;
+      m_elapsedNanos = elapsedNanos;
+
+      int total = 0;
+      for (long[] l : latencies) {
+        Arrays.sort(l);
+        total += l.length;
+      }
+
+      m_all = new long[total];
+      int n = 0;
+      for (long[] l : latencies) {
+        System.arraycopy(l, 0, m_all, n, l.length);
+        n += l.length;
+      }
+
+      Arrays.sort(m_all);
+    }
+
+    /**
+    * Returns the number of responses of a kind, or of all kinds if kind is null.
+    */
+    long count(Kind kind) {
+      return latencies(kind).length;
+    }
+
+    /**
+    * Returns the number of requests that failed or got an unexpected status.
+    */
+    long errors() {
+      return m_errors;
+    }
+
+    /**
+    * Returns the responses per second, of all kinds.
+    */
+    double throughput() {
+      return m_all.length * 1e9 / m_elapsedNanos;
+    }
+
+    /**
+    * Returns the latency in nanoseconds below which the given fraction of responses of a kind,
+    * or of all kinds if kind is null, were received. Returns 0 if there were none.
+    */
+    long percentile(Kind kind, double fraction) {
+      long[] l = latencies(kind);
+      if (l.length == 0) {
+        return 0;
+      }
+
+      int i = (int)Math.ceil(fraction * l.length) - 1;
+      return l[Math.max(0, Math.min(l.length - 1, i))];
+    }
+
+    private long[] latencies(Kind kind) {
+      return kind == null ? m_all : m_latencies[kind.ordinal()];
+    }
+  }
+
+  /**
+  * Sends requests to a path on a server. Weights give the relative share of each kind of
+  * request, indexed by Kind.ordinal(). Actual requests and preflights come from origin.
+  */
+  LoadGenerator(InetSocketAddress address, String path, String origin, int[] weights, int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("The number of threads must be positive");
+    }
+
+    m_address = address;
+    m_threads = threads;
+
+    int total = 0;
+    for (Kind kind : Kind.values()) {
+      if (weights[kind.ordinal()] < 0) {
+        throw new IllegalArgumentException("Weights can't be negative");
+      }
+
+      total += weights[kind.ordinal()];
+      m_cumulativeWeights[kind.ordinal()] = total;
+      m_requests[kind.ordinal()] = request(kind, address, path, origin);
+    }
+
+    if (total == 0) {
+      throw new IllegalArgumentException("At least one kind of request must have a weight");
+    }
+  }
+
+  /**
+  * Sends requests from every thread for the given time, and returns what they recorded.
+  */
+  Result run(long durationNanos) throws InterruptedException {
+    Worker[] workers = new Worker[m_threads];
+    Thread[] threads = new Thread[m_threads];
+    CountDownLatch start = new CountDownLatch(1);
+
+    for (int i = 0; i < m_threads; ++i) {
+      workers[i] = new Worker(start);
+      threads[i] = new Thread(workers[i], "load-" + i);
+      threads[i].start();
+    }
+
+    long begin = System.nanoTime();
+    long deadline = begin + durationNanos;
+    for (Worker worker : workers) {
+      worker.m_deadline = deadline;
+    }
+
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    long elapsed = System.nanoTime() - begin;
+
+    long[][] latencies = new long[Kind.values().length][];
+    long errors = 0;
+    for (Kind kind : Kind.values()) {
+      int total = 0;
+      for (Worker worker : workers) {
+        total += worker.m_counts[kind.ordinal()];
+      }
+
+      latencies[kind.ordinal()] = new long[total];
+      int n = 0;
+      for (Worker worker : workers) {
+        int count = worker.m_counts[kind.ordinal()];
+        System.arraycopy(worker.m_latencies[kind.ordinal()], 0, latencies[kind.ordinal()], n, count);
+        n += count;
+      }
+    }
+
+    for (Worker worker : workers) {
+      errors += worker.m_errors;
+    }
+
+    return new Result(latencies, errors, elapsed);
+  }
+
+  /**
+  * Parses a mix such as plain=20,actual=60,preflight=20 into weights indexed by Kind.ordinal().
+  * Kinds that aren't named get no requests.
+  *
+  * @throws IllegalArgumentException if the mix names an unknown kind or has an invalid weight
+  */
+  static int[] parseMix(String mix) {
+    int[] weights = new int[Kind.values().length];
+
+    for (String sPart : mix.split(",")) {
+      String[] nameAndWeight = sPart.trim().split("=");
+      if (nameAndWeight.length != 2) {
+        throw new IllegalArgumentException("Invalid request mix: " + mix);
+      }
+
+      Kind kind;
+      try {
+        kind = Kind.valueOf(nameAndWeight[0].trim().toUpperCase(Locale.ENGLISH));
+      } catch (IllegalArgumentException ex) {
+        throw new IllegalArgumentException("Unknown kind of request in mix: " + nameAndWeight[0], ex);
+      }
+
+      try {
+        weights[kind.ordinal()] = Integer.parseInt(nameAndWeight[1].trim());
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Invalid weight in mix: " + sPart, ex);
+      }
+    }
+
+    return weights;
+  }
+
+  private static byte[] request(Kind kind, InetSocketAddress address, String path, String origin) {
+    StringBuilder s = new StringBuilder();
+    s.append(kind == Kind.PREFLIGHT ? "OPTIONS " : "GET ").append(path).append(" HTTP/1.1\r\n");
+    s.append("Host: ").append(address.getHostString()).append(':').append(address.getPort()).append("\r\n");
+
+    if (kind != Kind.PLAIN) {
+      s.append("Origin: ").append(origin).append("\r\n");
+    }
+
+    if (kind == Kind.PREFLIGHT) {
+      s.append("Access-Control-Request-Method: PUT\r\n");
+      s.append("Access-Control-Request-Headers: content-type,x-request-id\r\n");
+    }
+
+    s.append("\r\n");
+    return s.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /**
+  * Sends requests on one connection until the deadline, reconnecting if the server closes it.
+  */
+  private final class Worker implements Runnable {
+    private final CountDownLatch m_start;
+    private final long[][] m_latencies = new long[Kind.values().length][INITIAL_CAPACITY];
+    private final int[] m_counts = new int[Kind.values().length];
+    private final StringBuilder m_line = new StringBuilder();
+    private volatile long m_deadline;
+    private long m_errors = 0;
+
+    private Socket m_socket;
+    private InputStream m_in;
+    private OutputStream m_out;
+    private boolean m_closeAfterResponse;
+
+    Worker(CountDownLatch start) {
+      m_start = start;
+    }
+
+    @Override
+    public void run() {
+      try {
+        m_start.await();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      long deadline = m_deadline;
+      int total = m_cumulativeWeights[m_cumulativeWeights.length - 1];
+
+      while (System.nanoTime() - deadline < 0) {
+        int r = ThreadLocalRandom.current().nextInt(total);
+        Kind kind = Kind.PLAIN;
+        while (r >= m_cumulativeWeights[kind.ordinal()]) {
+          kind = Kind.values()[kind.ordinal() + 1];
+        }
+
+        try {
+          if (m_socket == null) {
+            connect();
+          }
+
+          long begin = System.nanoTime();
+          m_out.write(m_requests[kind.ordinal()]);
+          m_out.flush();
+          int status = readResponse();
+          long latency = System.nanoTime() - begin;
+
+          if (status < 200 || status >= 300) {
+            ++m_errors;
+          } else {
+            record(kind, latency);
+          }
+
+          if (m_closeAfterResponse) {
+            disconnect();
+          }
+        } catch (IOException ex) {
+          ++m_errors;
+          disconnect();
+        }
+      }
+
+      disconnect();
+    }
+
+    private void record(Kind kind, long latency) {
+      int i = kind.ordinal();
+      if (m_counts[i] == m_latencies[i].length) {
+        m_latencies[i] = Arrays.copyOf(m_latencies[i], m_latencies[i].length * 2);
+      }
+
+      m_latencies[i][m_counts[i]++] = latency;
+    }
+
+    private void connect() throws IOException {
+      m_socket = new Socket();
+      m_socket.setTcpNoDelay(true);
+      m_socket.connect(m_address);
+      m_in = new BufferedInputStream(m_socket.getInputStream());
+      m_out = new BufferedOutputStream(m_socket.getOutputStream());
+    }
+
+    private void disconnect() {
+      if (m_socket != null) {
+        try {
+          m_socket.close();
+        } catch (IOException ex) {
+          // Nothing more to read from it either way
+        }
+
+        m_socket = null;
+      }
+    }
+
+    /**
+    * Reads a response and skips its body. Returns the status code.
+    */
+    private int readResponse() throws IOException {
+      String sStatusLine = readLine();
+      if (sStatusLine.length() < 12 || !sStatusLine.startsWith("HTTP/1.")) {
+        throw new IOException("Invalid status line: " + sStatusLine);
+      }
+
+      int status = Integer.parseInt(sStatusLine.substring(9, 12));
+      long contentLength = -1;
+      boolean chunked = false;
+      m_closeAfterResponse = sStatusLine.startsWith("HTTP/1.0");
+
+      for (String sLine = readLine(); !sLine.isEmpty(); sLine = readLine()) {
+        int colon = sLine.indexOf(':');
+        if (colon == -1) {
+          continue;
+        }
+
+        String name = sLine.substring(0, colon).trim();
+        String value = sLine.substring(colon + 1).trim();
+
+        if (name.equalsIgnoreCase("Content-Length")) {
+          contentLength = Long.parseLong(value);
+        } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+          chunked = value.equalsIgnoreCase("chunked");
+        } else if (name.equalsIgnoreCase("Connection")) {
+          m_closeAfterResponse = value.equalsIgnoreCase("close");
+        }
+      }
+
+      if (status == 204 || status == 304) {
+        return status;
+      }
+
+      if (chunked) {
+        for (long size = chunkSize(); size > 0; size = chunkSize()) {
+          skip(size);
+          readLine();
+        }
+
+        // Trailers, if any, end with an empty line
+        while (!readLine().isEmpty()) {
+        }
+      } else if (contentLength >= 0) {
+        skip(contentLength);
+      } else {
+        throw new IOException("Response has no length");
+      }
+
+      return status;
+    }
+
+    private long chunkSize() throws IOException {
+      String sLine = readLine();
+      int extension = sLine.indexOf(';');
+      return Long.parseLong((extension == -1 ? sLine : sLine.substring(0, extension)).trim(), 16);
+    }
+
+    private void skip(long n) throws IOException {
+      while (n > 0) {
+        long skipped = m_in.skip(n);
+        if (skipped <= 0) {
+          if (m_in.read() == -1) {
+            throw new EOFException("Connection closed in a response body");
+          }
+
+          skipped = 1;
+        }
+
+        n -= skipped;
+      }
+    }
+
+    private String readLine() throws IOException {
+      m_line.setLength(0);
+
+      while (true) {
+        int c = m_in.read();
+        if (c == -1) {
+          throw new EOFException("Connection closed in a response");
+        }
+
+        if (c == '\n') {
+          int length = m_line.length();
+          if (length > 0 && m_line.charAt(length - 1) == '\r') {
+            m_line.setLength(length - 1);
+          }
+
+          return m_line.toString();
+        }
+
+        m_line.append((char)c);
+      }
+    }
+  }
+}
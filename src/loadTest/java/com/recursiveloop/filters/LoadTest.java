@@ -0,0 +1,217 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+
+
+/**
+* Measures the cost of CorsFilter inside a real servlet container.
+*
+* Starts an embedded Jetty on the loopback interface with a trivial servlet that is reached both
+* through the filter, under /cors, and without it, under /plain. The same mix of requests is sent
+* to each in turn, so the difference between the two is the filter's overhead, including the
+* container's header lookups, the extra link in the filter chain and committing its responses.
+*
+* Options are system properties: loadTest.threads, loadTest.warmup and loadTest.duration (in
+* seconds), loadTest.mix (e.g. plain=20,actual=60,preflight=20), loadTest.origin, and
+* loadTest.config, a properties file of filter parameters to use instead of the defaults.
+*/
+public final class LoadTest {
+  private static final String DEFAULT_ORIGIN = "https://app.example.com";
+
+  private LoadTest() {}
+
+  /**
+  * Answers every request with a short fixed body.
+  */
+  private static final class TrivialServlet extends HttpServlet {
+    private static final byte[] BODY = "ok\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
+      response.setContentType("text/plain");
+      response.setContentLength(BODY.length);
+      response.getOutputStream().write(BODY);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = Integer.getInteger("loadTest.threads", 2 * Runtime.getRuntime().availableProcessors());
+    long warmup = TimeUnit.SECONDS.toNanos(Integer.getInteger("loadTest.warmup", 5));
+    long duration = TimeUnit.SECONDS.toNanos(Integer.getInteger("loadTest.duration", 10));
+    int[] weights = LoadGenerator.parseMix(System.getProperty("loadTest.mix", "plain=20,actual=60,preflight=20"));
+    String origin = System.getProperty("loadTest.origin", DEFAULT_ORIGIN);
+    String sConfig = System.getProperty("loadTest.config");
+
+    Map<String, String> params = sConfig == null ? defaultParams() : loadParams(sConfig);
+
+    Server server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    connector.setHost("127.0.0.1");
+    connector.setPort(0);
+    server.addConnector(connector);
+
+    ServletContextHandler context = new ServletContextHandler();
+    context.setContextPath("/");
+    context.addServlet(new ServletHolder(new TrivialServlet()), "/*");
+
+    FilterHolder filter = new FilterHolder(CorsFilter.class);
+    filter.setName("CorsFilter");
+    filter.setInitParameters(params);
+    context.addFilter(filter, "/cors/*", EnumSet.of(DispatcherType.REQUEST));
+
+    server.setHandler(context);
+    server.start();
+
+    try {
+      InetSocketAddress address = new InetSocketAddress("127.0.0.1", connector.getLocalPort());
+
+      System.out.println();
+      System.out.println("Threads: " + threads + ", warmup: " + TimeUnit.NANOSECONDS.toSeconds(warmup)
+        + "s, duration: " + TimeUnit.NANOSECONDS.toSeconds(duration) + "s, mix: " + describeMix(weights));
+
+      LoadGenerator plain = new LoadGenerator(address, "/plain/api/items", origin, weights, threads);
+      LoadGenerator cors = new LoadGenerator(address, "/cors/api/items", origin, weights, threads);
+
+      // Warm both paths up first, so neither is measured while the other is still being compiled
+      plain.run(warmup);
+      cors.run(warmup);
+
+      LoadGenerator.Result baseline = measure("baseline", plain, duration);
+      LoadGenerator.Result filtered = measure("filter", cors, duration);
+
+      printOverhead(baseline, filtered);
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+  * The filter parameters used unless loadTest.config is set: a small allowlist, credentials,
+  * exposed headers and preflights answered by the filter, as in a typical API deployment.
+  */
+  private static Map<String, String> defaultParams() {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("cors.allowed.origins", DEFAULT_ORIGIN + ",https://admin.example.com,https://*.partner.example.com");
+    params.put("cors.allowed.methods", "GET,POST,PUT,DELETE,OPTIONS");
+    params.put("cors.allowed.headers", "Content-Type,X-Request-Id");
+    params.put("cors.exposed.headers", "X-Request-Id,X-Total-Count");
+    params.put("cors.support.credentials", "true");
+    params.put("cors.preflight.maxage", "600");
+    params.put("cors.preflight.terminate", "true");
+    params.put("cors.jmx.enabled", "false");
+    return params;
+  }
+
+  private static Map<String, String> loadParams(String file) throws IOException {
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(Paths.get(file))) {
+      properties.load(in);
+    }
+
+    Map<String, String> params = new HashMap<String, String>();
+    for (String name : properties.stringPropertyNames()) {
+      params.put(name, properties.getProperty(name));
+    }
+
+    return params;
+  }
+
+  private static LoadGenerator.Result measure(String phase, LoadGenerator generator, long duration)
+    throws InterruptedException {
+
+    LoadGenerator.Result result = generator.run(duration);
+
+    System.out.println();
+    System.out.println(phase + ": " + String.format("%.0f", result.throughput()) + " requests/s, "
+      + result.errors() + " errors");
+    System.out.println(String.format("  %-10s %10s %10s %10s %10s", "", "requests", "p50 (us)", "p99 (us)", "p999 (us)"));
+
+    for (LoadGenerator.Kind kind : LoadGenerator.Kind.values()) {
+      if (result.count(kind) > 0) {
+        printRow(label(kind), result, kind);
+      }
+    }
+
+    printRow("all", result, null);
+    return result;
+  }
+
+  private static void printRow(String label, LoadGenerator.Result result, LoadGenerator.Kind kind) {
+    System.out.println(String.format("  %-10s %10d %10.1f %10.1f %10.1f", label, result.count(kind),
+      micros(result.percentile(kind, 0.5)), micros(result.percentile(kind, 0.99)),
+      micros(result.percentile(kind, 0.999))));
+  }
+
+  private static void printOverhead(LoadGenerator.Result baseline, LoadGenerator.Result filtered) {
+    System.out.println();
+    System.out.println("filter overhead: " + String.format("%+.1f%%",
+      100 * (baseline.throughput() / filtered.throughput() - 1)) + " time per request");
+    System.out.println(String.format("  %-10s %10s %10s %10s", "", "p50 (us)", "p99 (us)", "p999 (us)"));
+
+    for (LoadGenerator.Kind kind : LoadGenerator.Kind.values()) {
+      if (baseline.count(kind) > 0 && filtered.count(kind) > 0) {
+        printDifference(label(kind), baseline, filtered, kind);
+      }
+    }
+
+    printDifference("all", baseline, filtered, null);
+  }
+
+  private static void printDifference(String label, LoadGenerator.Result baseline, LoadGenerator.Result filtered,
+    LoadGenerator.Kind kind) {
+
+    System.out.println(String.format("  %-10s %+10.1f %+10.1f %+10.1f", label,
+      micros(filtered.percentile(kind, 0.5) - baseline.percentile(kind, 0.5)),
+      micros(filtered.percentile(kind, 0.99) - baseline.percentile(kind, 0.99)),
+      micros(filtered.percentile(kind, 0.999) - baseline.percentile(kind, 0.999))));
+  }
+
+  private static String label(LoadGenerator.Kind kind) {
+    return kind.name().toLowerCase(Locale.ENGLISH);
+  }
+
+  private static double micros(long nanos) {
+    return nanos / 1000.0;
+  }
+
+  private static String describeMix(int[] weights) {
+    StringBuilder s = new StringBuilder();
+    for (LoadGenerator.Kind kind : LoadGenerator.Kind.values()) {
+      if (s.length() > 0) {
+        s.append(',');
+      }
+
+      s.append(label(kind)).append('=').append(weights[kind.ordinal()]);
+    }
+
+    return s.toString();
+  }
+}
@@ -0,0 +1,403 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+* Caches the answers of an OriginPolicyProvider per origin.
+*
+* Allowed and unknown origins are cached separately, each with its own bound and time to live,
+* so a flood of random Origin headers can only churn the negative cache. An entry that is past
+* three quarters of its time to live is refreshed on a background executor while the cached
+* answer continues to be served.
+*
+* Misses are looked up on the same executor, and request threads wait for the answer for at most
+* the lookup timeout. Concurrent misses for the same origin share one lookup, and the number of
+* lookups outstanding at once is limited; beyond that limit an uncached origin is answered
+* without consulting the provider. A lookup that is shed, fails or times out is answered as
+* unknown and not cached, so a provider that is briefly down doesn't deny origins for longer
+* than that.
+*/
+final class CachingOriginProvider {
+  private final static Logger m_logger = Logger.getLogger(CachingOriginProvider.class.getName());
+
+  private static final int EVICTION_SAMPLE = 8;
+  private static final int DEFAULT_TTL = 300;
+  private static final int DEFAULT_NEGATIVE_TTL = 60;
+
+  /**
+  * The answer for an origin. UNKNOWN means the provider couldn't be asked or didn't answer in
+  * time; the origin isn't allowed, but the answer mustn't be cached.
+  */
+  enum Answer {
+    ALLOWED, DENIED, UNKNOWN
+  }
+
+  private final OriginPolicyProvider m_provider;
+  private final long m_ttlNanos;
+  private final long m_negativeTtlNanos;
+  private final long m_timeoutNanos;
+  private final int m_maxSize;
+  private final int m_maxNegativeSize;
+  private final ConcurrentHashMap<String, Entry> m_allowed = new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentHashMap<String, Entry> m_denied = new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentHashMap<String, FutureTask<Boolean>> m_loading =
+    new ConcurrentHashMap<String, FutureTask<Boolean>>();
+  private final Semaphore m_lookupPermits;
+  private final ThreadPoolExecutor m_executor;
+  private final LongAdder m_lookups = new LongAdder();
+  private final LongAdder m_shed = new LongAdder();
+
+  private static final class Entry {
+    final boolean allowed;
+    final long loaded;
+    final AtomicBoolean refreshing = new AtomicBoolean();
+
+    Entry(boolean allowed, long loaded) {
+      this.allowed = allowed;
+      this.loaded = loaded;
+    }
+  }
+
+  /**
+  * Wraps a provider that has already been initialised. A timeoutNanos of zero or less waits for
+  * lookups without a limit.
+  */
+  CachingOriginProvider(OriginPolicyProvider provider, long ttlNanos, long negativeTtlNanos,
+    int maxSize, int maxNegativeSize, int threads, int maxConcurrentLookups, long timeoutNanos) {
+
+    m_provider = provider;
+    m_ttlNanos = ttlNanos;
+    m_negativeTtlNanos = negativeTtlNanos;
+    m_timeoutNanos = timeoutNanos;
+    m_maxSize = maxSize;
+    m_maxNegativeSize = maxNegativeSize;
+    m_lookupPermits = new Semaphore(maxConcurrentLookups);
+
+    // Enough threads that every permitted lookup can run at once
+    int poolSize = Math.max(1, Math.max(threads, maxConcurrentLookups));
+    m_executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+      new ArrayBlockingQueue<Runnable>(1024), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "cors-origin-lookup");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+    m_executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+  * Creates and initialises the provider named by cors.origin.provider, or the file provider if
+  * only cors.origin.provider.file is set, and wraps it in a cache configured from the
+  * cors.origin.provider.* parameters. Returns null if no provider is configured.
+  *
+  * @throws IllegalArgumentException if the provider cannot be created or initialised
+  */
+  static CachingOriginProvider fromParams(Map<String, String> params) {
+    String className = params.get("cors.origin.provider");
+    if (className == null && params.get("cors.origin.provider.file") != null) {
+      className = FileOriginPolicyProvider.class.getName();
+    }
+
+    if (className == null) {
+      return null;
+    }
+
+    OriginPolicyProvider provider;
+    try {
+      provider = (OriginPolicyProvider)Class.forName(className.trim()).getConstructor().newInstance();
+      provider.init(params);
+    } catch (Exception ex) {
+      throw new IllegalArgumentException("Unable to initialise origin provider " + className, ex);
+    }
+
+    return new CachingOriginProvider(provider,
+      TimeUnit.SECONDS.toNanos(CorsPolicy.getInt(params, "cors.origin.provider.ttl", DEFAULT_TTL)),
+      TimeUnit.SECONDS.toNanos(
+        CorsPolicy.getInt(params, "cors.origin.provider.negative.ttl", DEFAULT_NEGATIVE_TTL)),
+      CorsPolicy.getInt(params, "cors.origin.provider.cache.size", 10000),
+      CorsPolicy.getInt(params, "cors.origin.provider.negative.size", 10000),
+      CorsPolicy.getInt(params, "cors.origin.provider.threads", 2),
+      CorsPolicy.getInt(params, "cors.origin.provider.max.lookups", 16),
+      TimeUnit.MILLISECONDS.toNanos(CorsPolicy.getInt(params, "cors.origin.provider.timeout", 1000)));
+  }
+
+  /**
+  * Returns the shorter of cors.origin.provider.ttl and cors.origin.provider.negative.ttl, in
+  * seconds: the longest that anything derived from the provider's answers may be cached.
+  */
+  static int shortestTtl(Map<String, String> params) {
+    return Math.min(CorsPolicy.getInt(params, "cors.origin.provider.ttl", DEFAULT_TTL),
+      CorsPolicy.getInt(params, "cors.origin.provider.negative.ttl", DEFAULT_NEGATIVE_TTL));
+  }
+
+  /**
+  * Returns the provider for the parameters from those already created, creating it if no other
+  * policy has the same cors.origin.provider* parameters. Returns null if no provider is
+  * configured.
+  *
+  * @throws IllegalArgumentException if the provider cannot be created or initialised
+  */
+  static CachingOriginProvider shared(Map<String, String> params,
+    Map<Map<String, String>, CachingOriginProvider> providers) {
+
+    Map<String, String> config = new TreeMap<String, String>();
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      if (param.getKey().startsWith("cors.origin.provider")) {
+        config.put(param.getKey(), param.getValue());
+      }
+    }
+
+    if (providers.containsKey(config)) {
+      return providers.get(config);
+    }
+
+    CachingOriginProvider provider = fromParams(params);
+    providers.put(config, provider);
+    return provider;
+  }
+
+  /**
+  * Returns true if the provider allows the origin, which must be in canonical form, answering
+  * from the cache where possible.
+  */
+  boolean isAllowed(String key) {
+    return check(key) == Answer.ALLOWED;
+  }
+
+  /**
+  * Returns the provider's answer for the origin, which must be in canonical form, answering
+  * from the cache where possible.
+  */
+  Answer check(String key) {
+    long now = System.nanoTime();
+
+    Entry entry = m_allowed.get(key);
+    if (entry == null) {
+      entry = m_denied.get(key);
+    }
+
+    if (entry != null) {
+      long ttl = entry.allowed ? m_ttlNanos : m_negativeTtlNanos;
+      long age = now - entry.loaded;
+
+      if (age < ttl) {
+        if (age >= ttl - ttl / 4) {
+          refreshAsync(key, entry);
+        }
+
+        return entry.allowed ? Answer.ALLOWED : Answer.DENIED;
+      }
+    }
+
+    return load(key);
+  }
+
+  /**
+  * Returns the number of times the provider has been consulted.
+  */
+  long lookups() {
+    return m_lookups.sum();
+  }
+
+  /**
+  * Returns the number of uncached origins answered as unknown because too many lookups were in
+  * progress.
+  */
+  long shed() {
+    return m_shed.sum();
+  }
+
+  /**
+  * Returns the number of origins cached negatively.
+  */
+  int negativeSize() {
+    return m_denied.size();
+  }
+
+  /**
+  * Stops background lookups and refreshes and destroys the provider. Threads still waiting for
+  * a queued lookup are answered as unknown.
+  */
+  void close() {
+    for (Runnable queued : m_executor.shutdownNow()) {
+      if (queued instanceof FutureTask) {
+        ((FutureTask<?>)queued).cancel(false);
+      }
+    }
+
+    m_provider.destroy();
+  }
+
+  /**
+  * Looks up an uncached or expired origin on the executor, sharing the lookup with any other
+  * threads asking about the same origin. The lookup holds a permit until it completes, even if
+  * every thread waiting for it has timed out, so a hung provider can only tie up as many lookups
+  * as there are permits.
+  */
+  private Answer load(final String key) {
+    FutureTask<Boolean> existing = m_loading.get(key);
+    if (existing != null) {
+      return await(key, existing);
+    }
+
+    if (!m_lookupPermits.tryAcquire()) {
+      m_shed.increment();
+      return Answer.UNKNOWN;
+    }
+
+    final AtomicReference<FutureTask<Boolean>> self = new AtomicReference<FutureTask<Boolean>>();
+    FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        // Cleaned up before the answer is published, so a thread that has had the answer can't
+        // then join this finished lookup or be shed for the permit it still holds
+        try {
+          boolean allowed = lookup(key);
+          store(key, allowed);
+          return allowed;
+        } finally {
+          m_loading.remove(key, self.get());
+          m_lookupPermits.release();
+        }
+      }
+    });
+
+    self.set(task);
+
+    existing = m_loading.putIfAbsent(key, task);
+    if (existing != null) {
+      m_lookupPermits.release();
+      return await(key, existing);
+    }
+
+    try {
+      m_executor.execute(task);
+    } catch (RejectedExecutionException ex) {
+      m_loading.remove(key, task);
+      m_lookupPermits.release();
+      m_shed.increment();
+      task.cancel(false);
+      return Answer.UNKNOWN;
+    }
+
+    return await(key, task);
+  }
+
+  private Answer await(String key, FutureTask<Boolean> task) {
+    try {
+      boolean allowed = m_timeoutNanos > 0 ?
+        task.get(m_timeoutNanos, TimeUnit.NANOSECONDS) : task.get();
+
+      return allowed ? Answer.ALLOWED : Answer.DENIED;
+    } catch (ExecutionException ex) {
+      m_logger.log(Level.WARNING, "Origin provider lookup failed for " + key, ex.getCause());
+      return Answer.UNKNOWN;
+    } catch (TimeoutException ex) {
+      m_logger.log(Level.WARNING, "Origin provider lookup timed out for " + key);
+      return Answer.UNKNOWN;
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      return Answer.UNKNOWN;
+    } catch (CancellationException ex) {
+      return Answer.UNKNOWN;
+    }
+  }
+
+  private void refreshAsync(final String key, final Entry entry) {
+    if (!entry.refreshing.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      m_executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            store(key, lookup(key));
+          } catch (Exception ex) {
+            // Keep serving the cached answer until it expires
+            entry.refreshing.set(false);
+            m_logger.log(Level.WARNING, "Origin provider refresh failed for " + key, ex);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      entry.refreshing.set(false);
+    }
+  }
+
+  private boolean lookup(String key) throws Exception {
+    m_lookups.increment();
+    return m_provider.isAllowed(key);
+  }
+
+  private void store(String key, boolean allowed) {
+    Entry entry = new Entry(allowed, System.nanoTime());
+
+    if (allowed) {
+      m_denied.remove(key);
+      put(m_allowed, m_maxSize, key, entry);
+    } else {
+      m_allowed.remove(key);
+      put(m_denied, m_maxNegativeSize, key, entry);
+    }
+  }
+
+  /**
+  * Adds an entry, first removing the oldest of a small sample of entries if the map is full.
+  */
+  private static void put(ConcurrentHashMap<String, Entry> map, int maxSize, String key, Entry entry) {
+    if (maxSize <= 0) {
+      return;
+    }
+
+    if (map.size() >= maxSize) {
+      Iterator<Map.Entry<String, Entry>> it = map.entrySet().iterator();
+
+      Map.Entry<String, Entry> oldest = null;
+      for (int i = 0; i < EVICTION_SAMPLE && it.hasNext(); ++i) {
+        Map.Entry<String, Entry> candidate = it.next();
+        if (oldest == null || candidate.getValue().loaded - oldest.getValue().loaded < 0) {
+          oldest = candidate;
+        }
+      }
+
+      if (oldest != null) {
+        map.remove(oldest.getKey(), oldest.getValue());
+      }
+    }
+
+    map.put(key, entry);
+  }
+}
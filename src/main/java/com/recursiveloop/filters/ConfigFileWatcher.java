@@ -0,0 +1,114 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+* Watches a single file and runs a callback on a background thread whenever it is created or
+* modified. A burst of changes in quick succession results in a single callback.
+*/
+final class ConfigFileWatcher implements Closeable {
+  private final static Logger m_logger = Logger.getLogger(ConfigFileWatcher.class.getName());
+
+  private static final long SETTLE_MILLIS = 100;
+
+  private final Path m_file;
+  private final Runnable m_onChange;
+  private final WatchService m_watchService;
+  private final Thread m_thread;
+
+  /**
+  * Starts watching the file.
+  */
+  ConfigFileWatcher(Path file, Runnable onChange) throws IOException {
+    m_file = file.toAbsolutePath();
+    m_onChange = onChange;
+    m_watchService = m_file.getFileSystem().newWatchService();
+
+    m_file.getParent().register(m_watchService,
+      StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+    m_thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        watch();
+      }
+    }, "cors-config-watcher");
+
+    m_thread.setDaemon(true);
+    m_thread.start();
+  }
+
+  /**
+  * Stops watching and waits briefly for the background thread to finish.
+  */
+  @Override
+  public void close() throws IOException {
+    m_watchService.close();
+
+    try {
+      m_thread.join(1000);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        boolean changed = drain(m_watchService.take());
+
+        // Wait for a burst of writes to settle, so a half-written file is not loaded
+        WatchKey key;
+        while ((key = m_watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+          changed |= drain(key);
+        }
+
+        if (changed) {
+          try {
+            m_onChange.run();
+          } catch (RuntimeException ex) {
+            m_logger.log(Level.WARNING, "Error handling change to " + m_file, ex);
+          }
+        }
+      }
+    } catch (ClosedWatchServiceException ex) {
+      // Closed by close()
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+  * Consumes the key's events and returns true if any of them concern the watched file.
+  */
+  private boolean drain(WatchKey key) {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (m_file.getFileName().equals(event.context())) {
+        changed = true;
+      }
+    }
+
+    key.reset();
+    return changed;
+  }
+}
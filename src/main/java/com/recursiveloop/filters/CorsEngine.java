@@ -0,0 +1,516 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.util.logging.Logger;
+import java.util.logging.Level;
+
+
+/**
+* The container-independent core of the filter.
+*
+* An engine is configured once from cors.* parameters, then evaluates each request through the
+* CorsRequest and CorsResponse interfaces, so the same policies, metrics and tracing serve the
+* servlet filters and the Netty handler. Adapters wrap the container's request and response
+* rather than copying them.
+*
+* Any number of threads may call apply() at once, including virtual threads. The request path
+* takes no locks and keeps nothing in thread-locals: the policies are immutable, and reach it
+* through a volatile reference that reloading swaps. Every field is final or volatile, so state
+* set by init() on one thread is seen by requests on any other.
+*/
+public final class CorsEngine {
+  private final static Logger m_logger = Logger.getLogger(CorsEngine.class.getName());
+
+  /**
+  * The names of the parameters that configure the engine rather than its policies.
+  */
+  static final String[] ENGINE_PARAM_NAMES = {
+    "cors.config.file",
+    "cors.jmx.enabled",
+    "cors.trace.rate",
+    "cors.trace.origins",
+    "cors.trace.buffer.size"
+  };
+
+  private static final PolicyRouter DEFAULT_ROUTER = defaultRouter();
+
+  private static final int SC_NO_CONTENT = 204;
+  private static final int SC_FORBIDDEN = 403;
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
+  private volatile PolicyRouter m_router = DEFAULT_ROUTER;
+  private volatile Map<String, String> m_initParams = Collections.emptyMap();
+  private volatile Path m_configFile = null;
+  private volatile ConfigFileWatcher m_configWatcher = null;
+  private final CorsMetrics m_metrics = new CorsMetrics(this);
+  private volatile ObjectName m_mbeanName = null;
+  private volatile DecisionTrace m_trace = null;
+
+  /**
+  * Guards swapping m_router, so that a reload that finishes after destroy() can't release the
+  * router twice or install one that is never released.
+  */
+  private final Object m_routerLock = new Object();
+  private boolean m_closed = false;
+
+  /**
+  * Returns the names of every parameter the engine and its policies read. Adapters whose
+  * container can't list its parameters should look these up by name.
+  */
+  public static String[] paramNames() {
+    String[] names = new String[CorsPolicy.PARAM_NAMES.length + ENGINE_PARAM_NAMES.length];
+    System.arraycopy(CorsPolicy.PARAM_NAMES, 0, names, 0, CorsPolicy.PARAM_NAMES.length);
+    System.arraycopy(ENGINE_PARAM_NAMES, 0, names, CorsPolicy.PARAM_NAMES.length, ENGINE_PARAM_NAMES.length);
+    return names;
+  }
+
+  /**
+  * A container's named configuration, such as a filter's init parameters.
+  */
+  public interface Parameters {
+    /**
+    * Returns the value of the named parameter, or null if it is not set.
+    */
+    String getInitParameter(String name);
+
+    /**
+    * Returns the names of the parameters that are set, or null if they can't be listed.
+    */
+    Enumeration<String> getInitParameterNames();
+  }
+
+  /**
+  * Collects the engine's parameters from a container's configuration: every parameter named in
+  * paramNames(), and any other cors.* parameter the container lists, such as an origin
+  * provider's own.
+  */
+  public static Map<String, String> params(Parameters config) {
+    Map<String, String> params = new HashMap<String, String>();
+    for (String name : paramNames()) {
+      String value = config.getInitParameter(name);
+      if (value != null) {
+        params.put(name, value);
+      }
+    }
+
+    Enumeration<String> names = config.getInitParameterNames();
+    while (names != null && names.hasMoreElements()) {
+      String name = names.nextElement();
+      if (name.startsWith("cors.") && !params.containsKey(name)) {
+        params.put(name, config.getInitParameter(name));
+      }
+    }
+
+    return params;
+  }
+
+  /**
+  * Initialises the engine.
+  *
+  * The context path and name identify the engine's metrics MBean, which is registered as
+  * com.recursiveloop.filters:type=CorsFilter,context=...,name=... unless cors.jmx.enabled is
+  * false. See CorsFilter.init for the other parameters.
+  *
+  * @throws IllegalArgumentException if a parameter has an invalid value
+  * @throws IOException if an origin index or the config file cannot be read or watched
+  */
+  public void init(Map<String, String> params, String contextPath, String name) throws IOException {
+    try {
+      start(params, contextPath, name);
+    } catch (IOException | RuntimeException ex) {
+      // Don't leave a half-initialised engine holding shared policies, threads or an MBean
+      destroy();
+      throw ex;
+    }
+  }
+
+  /**
+  * Evaluates a request, setting the response headers and, if the request is not to proceed,
+  * the status.
+  *
+  * Returns true if the request should be passed on to the application.
+  */
+  public boolean apply(CorsRequest req, CorsResponse res) {
+    long start = System.nanoTime();
+    CorsPolicy policy = m_router.select(req.getPath());
+    boolean proceed = apply(policy, req, res);
+    m_metrics.recordLatency(System.nanoTime() - start);
+
+    return proceed;
+  }
+
+  /**
+  * Releases the engine's policies, watcher, MBean and trace.
+  */
+  public void destroy() {
+    ConfigFileWatcher watcher = m_configWatcher;
+    if (watcher != null) {
+      m_configWatcher = null;
+
+      try {
+        watcher.close();
+      } catch (IOException ex) {
+        m_logger.log(Level.WARNING, "Error closing config file watcher", ex);
+      }
+    }
+
+    unregisterMBean();
+
+    PolicyRouter router;
+    synchronized (m_routerLock) {
+      m_closed = true;
+      router = m_router;
+      m_router = DEFAULT_ROUTER;
+    }
+
+    PolicyRegistry.release(router);
+
+    DecisionTrace trace = m_trace;
+    if (trace != null) {
+      m_trace = null;
+      trace.close();
+    }
+  }
+
+  /**
+  * Returns the number of requests that had the given outcome.
+  */
+  long getOutcomeCount(CorsOutcome outcome) {
+    return m_metrics.count(outcome);
+  }
+
+  /**
+  * Returns the number of preflights answered from the preflight cache. Engines with the same
+  * configuration share a cache, so this counts their preflights too.
+  */
+  public long getPreflightCacheHits() {
+    long hits = 0;
+    for (CorsPolicy policy : m_router.policies()) {
+      PreflightCache cache = policy.preflightCache();
+      hits += cache == null ? 0 : cache.hits();
+    }
+
+    return hits;
+  }
+
+  /**
+  * Returns the number of preflights that had to be evaluated because they were not in the
+  * preflight cache.
+  */
+  public long getPreflightCacheMisses() {
+    long misses = 0;
+    for (CorsPolicy policy : m_router.policies()) {
+      PreflightCache cache = policy.preflightCache();
+      misses += cache == null ? 0 : cache.misses();
+    }
+
+    return misses;
+  }
+
+  /**
+  * Recompiles the policies from the init parameters and config file, and swaps them in.
+  *
+  * The new policies are built off the request path. If they cannot be built, the current
+  * policies are kept. A reload that finishes after the engine is destroyed releases the policies
+  * it built and leaves the engine as it is.
+  */
+  void reloadPolicy() {
+    try {
+      PolicyRouter router = acquireRouter();
+      PolicyRouter previous;
+      boolean closed;
+
+      synchronized (m_routerLock) {
+        closed = m_closed;
+        previous = closed ? router : m_router;
+        if (!closed) {
+          m_router = router;
+        }
+      }
+
+      PolicyRegistry.release(previous);
+      if (closed) {
+        return;
+      }
+
+      m_logger.log(Level.INFO, "Reloaded CORS policy from {0}", m_configFile);
+    } catch (IOException | IllegalArgumentException ex) {
+      m_logger.log(Level.WARNING, "Keeping current CORS policy; unable to load " + m_configFile, ex);
+    }
+  }
+
+  /**
+  * Returns the Vary header value to send once Origin is merged into the given values, or null
+  * if they already cover Origin.
+  */
+  static String varyWithOrigin(Collection<String> values) {
+    if (values == null || values.isEmpty()) {
+      return "Origin";
+    }
+
+    StringBuilder merged = new StringBuilder();
+    for (String value : values) {
+      for (String token : value.split(",")) {
+        token = token.trim();
+        if (token.equals("*") || token.equalsIgnoreCase("Origin")) {
+          return null;
+        }
+      }
+
+      if (!value.trim().isEmpty()) {
+        merged.append(value.trim()).append(", ");
+      }
+    }
+
+    return merged.append("Origin").toString();
+  }
+
+  /**
+  * Returns the Vary value to set in place of the current values: the new value as it is, or with
+  * Origin merged into it if the current values vary on Origin and the new value doesn't.
+  *
+  * Servlet adapters use this when the application replaces Vary after the engine has merged
+  * Origin into it, since the CORS headers still depend on the Origin header.
+  */
+  static String replaceVary(Collection<String> current, String value) {
+    if (value == null || current == null || varyWithOrigin(current) != null) {
+      return value;
+    }
+
+    String merged = varyWithOrigin(Collections.singletonList(value));
+    return merged == null ? value : merged;
+  }
+
+  /**
+  * Evaluates the request against the policy and sets the response headers and status.
+  *
+  * Returns true if the request should be passed on.
+  */
+  private boolean apply(CorsPolicy policy, CorsRequest req, CorsResponse res) {
+    // Even a response to a request without an Origin would differ if it had one
+    if (!policy.wildcardOrigin()) {
+      String vary = varyWithOrigin(res.getHeaders("Vary"));
+      if (vary != null) {
+        res.setHeader("Vary", vary);
+      }
+    }
+
+    String origin = req.getHeader("Origin");
+    if (origin == null) {
+      m_metrics.record(CorsOutcome.NO_ORIGIN);
+      return true;
+    }
+
+    boolean isPreflight = "OPTIONS".equals(req.getMethod());
+
+    // Handle preflight requests
+    if (isPreflight) {
+      String method = req.getHeader("Access-Control-Request-Method");
+      String strHeaders = req.getHeader("Access-Control-Request-Headers");
+
+      if (method == null) {
+        record(CorsOutcome.PREFLIGHT_MISSING_METHOD, origin, req.getMethod(), strHeaders);
+        return true;
+      }
+
+      // Exempt paths are never limited, so their preflights don't use up the origin's tokens
+      if (!isExempt(policy, req) && !policy.tryAcquirePreflight(origin)) {
+        record(CorsOutcome.PREFLIGHT_RATE_LIMITED, origin, method, strHeaders);
+        res.setHeader("Retry-After", policy.preflightRetryAfter());
+        res.setStatus(SC_TOO_MANY_REQUESTS);
+        return false;
+      }
+
+      PreflightVerdict verdict = policy.preflight(origin, method, strHeaders);
+      record(verdict.outcome, origin, method, strHeaders);
+
+      if (!verdict.allowed) {
+        if (policy.enforcePreflight() && !isExempt(policy, req)) {
+          res.setStatus(SC_FORBIDDEN);
+          return false;
+        }
+
+        return true;
+      }
+
+      verdict.headers.writeTo(res, origin);
+    } else if (!policy.isOriginAllowed(origin)) {
+      record(CorsOutcome.ORIGIN_REJECTED, origin, req.getMethod(), null);
+
+      if (policy.enforceActual() && !isExempt(policy, req)) {
+        res.setStatus(SC_FORBIDDEN);
+        return false;
+      }
+
+      return true;
+    } else {
+      record(CorsOutcome.ACTUAL_APPROVED, origin, req.getMethod(), null);
+      policy.actualHeaders().writeTo(res, origin);
+    }
+
+    // Answer approved preflights here rather than passing them on
+    if (isPreflight && policy.terminatePreflight()) {
+      res.setStatus(SC_NO_CONTENT);
+      return false;
+    }
+
+    return true;
+  }
+
+  private void start(Map<String, String> params, String contextPath, String name) throws IOException {
+    String sConfigFile = params.get("cors.config.file");
+    String sJmxEnabled = params.get("cors.jmx.enabled");
+    String sTraceRate = params.get("cors.trace.rate");
+    String sTraceOrigins = params.get("cors.trace.origins");
+    String sTraceBufferSize = params.get("cors.trace.buffer.size");
+
+    m_initParams = Collections.unmodifiableMap(new HashMap<String, String>(params));
+    m_configFile = sConfigFile == null ? null : Paths.get(sConfigFile);
+    PolicyRouter router = acquireRouter();
+    synchronized (m_routerLock) {
+      m_closed = false;
+      m_router = router;
+    }
+
+    if (m_configFile != null) {
+      try {
+        m_configWatcher = new ConfigFileWatcher(m_configFile, new Runnable() {
+          @Override
+          public void run() {
+            reloadPolicy();
+          }
+        });
+      } catch (IOException ex) {
+        throw new IOException("Unable to watch " + m_configFile, ex);
+      }
+    }
+
+    if (sJmxEnabled == null || sJmxEnabled.equals("true")) {
+      registerMBean(contextPath, name);
+    }
+
+    if (sTraceRate != null) {
+      try {
+        double rate = Double.parseDouble(sTraceRate.trim());
+        int bufferSize = sTraceBufferSize == null ? 1024 : Integer.parseInt(sTraceBufferSize.trim());
+        OriginMatcher origins = sTraceOrigins == null ? null : new OriginMatcher(sTraceOrigins.split(","));
+
+        if (rate > 0) {
+          m_trace = new DecisionTrace(bufferSize, rate, origins);
+        }
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Invalid value for cors.trace.rate or cors.trace.buffer.size", ex);
+      }
+    }
+  }
+
+  /**
+  * Gets the policies for the init parameters, overridden by any cors.* entries in the config
+  * file, from the registry.
+  */
+  private PolicyRouter acquireRouter() throws IOException {
+    Map<String, String> params = new HashMap<String, String>(m_initParams);
+
+    if (m_configFile != null) {
+      Properties properties = new Properties();
+      try (Reader reader = Files.newBufferedReader(m_configFile, StandardCharsets.UTF_8)) {
+        properties.load(reader);
+      }
+
+      for (String name : properties.stringPropertyNames()) {
+        if (name.startsWith("cors.")) {
+          params.put(name, properties.getProperty(name));
+        }
+      }
+    }
+
+    return PolicyRegistry.acquire(params);
+  }
+
+  /**
+  * Counts the outcome of a CORS request and passes it to the trace, if tracing is on.
+  */
+  private void record(CorsOutcome outcome, String origin, String method, String requestHeaders) {
+    m_metrics.record(outcome);
+
+    DecisionTrace trace = m_trace;
+    if (trace != null) {
+      trace.record(origin, method, requestHeaders, outcome);
+    }
+  }
+
+  /**
+  * Compiles the policy used before init() and after destroy().
+  */
+  private static PolicyRouter defaultRouter() {
+    try {
+      return PolicyRouter.compile(Collections.<String, String>emptyMap());
+    } catch (IOException ex) {
+      // The default policy has no origin index, so there is nothing to read
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  /**
+  * Registers the metrics MBean. Failure is logged rather than failing initialisation.
+  */
+  private void registerMBean(String contextPath, String name) {
+    String sContext = contextPath == null || contextPath.isEmpty() ? "/" : contextPath;
+    String sName = name == null ? "CorsFilter" : name;
+
+    try {
+      ObjectName objectName = new ObjectName("com.recursiveloop.filters:type=CorsFilter"
+        + ",context=" + ObjectName.quote(sContext)
+        + ",name=" + ObjectName.quote(sName));
+
+      ManagementFactory.getPlatformMBeanServer()
+        .registerMBean(new StandardMBean(m_metrics, CorsMetricsMBean.class), objectName);
+
+      m_mbeanName = objectName;
+    } catch (JMException ex) {
+      m_logger.log(Level.WARNING, "Unable to register CORS metrics MBean", ex);
+    }
+  }
+
+  private void unregisterMBean() {
+    if (m_mbeanName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_mbeanName);
+      } catch (JMException ex) {
+        m_logger.log(Level.WARNING, "Unable to unregister CORS metrics MBean", ex);
+      }
+
+      m_mbeanName = null;
+    }
+  }
+
+  /**
+  * Returns true if the request path is exempt from enforcement.
+  */
+  private static boolean isExempt(CorsPolicy policy, CorsRequest req) {
+    return policy.isExempt(req.getPath());
+  }
+}
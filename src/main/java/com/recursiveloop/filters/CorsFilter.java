@@ -9,152 +9,204 @@
 package com.recursiveloop.filters;
 
 import java.io.IOException;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Map;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.util.logging.Logger;
-import java.util.logging.Level;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 
 /**
-* Implements Cross-Origin Resource Sharing (CORS), the standard way of circumventing a web browser's Same Origin Policy (SOP).
+* Implements Cross-Origin Resource Sharing (CORS), the standard way of circumventing a web
+* browser's Same Origin Policy (SOP).
 */
 public class CorsFilter implements Filter {
-  private final static Logger m_logger = Logger.getLogger(CorsFilter.class.getName());
-
-  private String[] m_allowedOrigins = {"*"};
-  private String m_allowedMethods = "GET,POST,HEAD,OPTIONS,PUT";
-  private List<String> m_lstAllowedMethods = null;
-  private String m_allowedHeaders = "Content-Type,X-Requested-With,accept,Origin,Access-Control-Request-Method,Access-Control-Request-Headers";
-  private List<String> m_lstAllowedHeaders = null;
-  private String m_exposedHeaders = "Access-Control-Allow-Origin,Access-Control-Allow-Credentials";
-  private boolean m_supportCredentials = true;
-  private String m_preflightMaxAge = "1000";
+  private final CorsEngine m_engine = new CorsEngine();
 
   /**
-  * Initialises the filter.
+  * Adapts a servlet request and response for the engine, reading headers as they are asked for.
   */
-  @Override
-  public void init(FilterConfig config) throws ServletException {
-    String sAllowedOrigins = config.getInitParameter("cors.allowed.origins");
-    String sAllowedMethods = config.getInitParameter("cors.allowed.methods");
-    String sAllowedHeaders = config.getInitParameter("cors.allowed.headers");
-    String sExposedHeaders = config.getInitParameter("cors.exposed.headers");
-    String sSupportCredentials = config.getInitParameter("cors.support.credentials");
-    String sPreflightMaxAge = config.getInitParameter("cors.preflight.maxage");
-
-    if (sAllowedOrigins != null) {
-      m_allowedOrigins = sAllowedOrigins.toLowerCase().split("\\s*,\\s*");
+  private static final class ServletExchange implements CorsRequest, CorsResponse {
+    private final HttpServletRequest m_req;
+    private final HttpServletResponse m_res;
+
+    ServletExchange(HttpServletRequest req, HttpServletResponse res) {
+      m_req = req;
+      m_res = res;
+    }
+
+    @Override
+    public String getMethod() {
+      return m_req.getMethod();
     }
 
-    if (sAllowedMethods != null) {
-      m_allowedMethods = sAllowedMethods;
-      m_lstAllowedMethods = Arrays.asList(m_allowedMethods.toLowerCase().split("\\s*,\\s*"));
+    @Override
+    public String getHeader(String name) {
+      return m_req.getHeader(name);
     }
 
-    if (sAllowedHeaders != null) {
-      m_allowedHeaders = sAllowedHeaders;
-      m_lstAllowedHeaders = Arrays.asList(m_allowedHeaders.toLowerCase().split("\\s*,\\s*"));
+    @Override
+    public String getPath() {
+      return RequestPath.ofServlet(m_req.getServletPath(), m_req.getPathInfo());
     }
 
-    if (sExposedHeaders != null) {
-      m_exposedHeaders = sExposedHeaders;
+    @Override
+    public void setHeader(String name, String value) {
+      m_res.setHeader(name, value);
     }
 
-    if (sSupportCredentials != null) {
-      m_supportCredentials = sSupportCredentials.equals("true");
+    @Override
+    public Collection<String> getHeaders(String name) {
+      return m_res.getHeaders(name);
     }
 
-    if (sPreflightMaxAge != null) {
-      m_preflightMaxAge = sPreflightMaxAge;
+    @Override
+    public void setStatus(int status) {
+      m_res.setStatus(status);
     }
   }
 
   /**
-  * Modifies the response accordingly and passes it to the next filter in the chain.
+  * Keeps Origin in Vary when the application replaces the header further down the chain. Adding
+  * Vary values can't drop Origin, so only setHeader is intercepted.
   */
-  @Override
-  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
-    throws IOException, ServletException {
+  private static final class VaryOriginResponse extends HttpServletResponseWrapper {
+    VaryOriginResponse(HttpServletResponse res) {
+      super(res);
+    }
 
-    HttpServletRequest req = (HttpServletRequest)request;
-    HttpServletResponse res = (HttpServletResponse)response;
+    @Override
+    public void setHeader(String name, String value) {
+      if ("Vary".equalsIgnoreCase(name)) {
+        value = CorsEngine.replaceVary(getHeaders("Vary"), value);
+      }
 
-    String origin = req.getHeader("Origin");
-    if (origin != null) {
+      super.setHeader(name, value);
+    }
+  }
 
-      boolean matchFound = false;
-      for (String s : m_allowedOrigins) {
-        if (match(origin, s)) {
-          matchFound = true;
-          break;
-        }
+  /**
+  * Initialises the filter.
+  *
+  * If cors.policies is set, each named policy applies to the paths in cors.policy.<name>.paths,
+  * and requests to other paths get the global policy.
+  *
+  * Filters with the same configuration share one compiled copy of their policies.
+  *
+  * If cors.config.file is set, parameters in that properties file override the init
+  * parameters, and the policy is recompiled whenever the file changes.
+  *
+  * Unless cors.jmx.enabled is false, the filter's metrics are registered with the platform
+  * MBean server as com.recursiveloop.filters:type=CorsFilter,context=...,name=...
+  *
+  * If cors.trace.rate is greater than zero, that fraction of decisions is logged asynchronously,
+  * optionally only for the origins in cors.trace.origins.
+  */
+  @Override
+  public void init(final FilterConfig config) throws ServletException {
+    Map<String, String> initParams = CorsEngine.params(new CorsEngine.Parameters() {
+      @Override
+      public String getInitParameter(String name) {
+        return config.getInitParameter(name);
       }
 
-      if (!matchFound) {
-        chain.doFilter(req, res);
-        return;
+      @Override
+      public Enumeration<String> getInitParameterNames() {
+        return config.getInitParameterNames();
       }
+    });
 
-      // Handle preflight requests
-      if (req.getMethod() != null && req.getMethod().equals("OPTIONS")) {
-        String method = req.getHeader("Access-Control-Request-Method");
-        String strHeaders = req.getHeader("Access-Control-Request-Headers");
-
-        if (method == null) {
-          chain.doFilter(req, res);
-          return;
-        }
-
-        List<String> headers = strHeaders == null ?
-          new ArrayList<String>() : Arrays.asList(strHeaders.split("\\s*,\\s*"));
-
-        if (!m_lstAllowedMethods.contains(method.toLowerCase())) {
-          chain.doFilter(req, res);
-          return;
-        }
-
-        for (String hdr : headers) {
-          if (!m_lstAllowedHeaders.contains(hdr.toLowerCase())) {
-            chain.doFilter(req, res);
-            return;
-          }
-        }
-
-        res.setHeader("Access-Control-Allow-Methods", m_allowedMethods);
-        res.setHeader("Access-Control-Allow-Headers", m_allowedHeaders);
-        res.setHeader("Access-Control-Max-Age", m_preflightMaxAge);
-      }
+    ServletContext context = config.getServletContext();
+    String contextPath = context != null ? context.getContextPath() : null;
+
+    try {
+      m_engine.init(initParams, contextPath, config.getFilterName());
+    } catch (IOException | IllegalArgumentException ex) {
+      throw new ServletException("Invalid CORS configuration", ex);
+    }
+  }
 
-      res.setHeader("Access-Control-Allow-Origin", origin);
-      res.setHeader("Access-Control-Expose-Headers", m_exposedHeaders);
+  /**
+  * Modifies the response accordingly and passes it to the next filter in the chain.
+  *
+  * If cors.preflight.terminate is true, approved preflight requests are answered with
+  * 204 No Content and are not passed down the chain.
+  *
+  * Responses carry Vary: Origin, since they depend on the Origin header, unless
+  * cors.wildcard.origin is true. In that case approved responses carry a literal * instead of
+  * the origin, so a cache holds one variant rather than one per origin. If the application
+  * replaces Vary, Origin is merged back into the new value.
+  *
+  * If cors.preflight.rate.limit is set, preflights from an origin beyond that rate are
+  * answered with 429 Too Many Requests before they are evaluated.
+  *
+  * If cors.version is set, approved responses carry it in X-CORS-Policy-Version.
+  *
+  * If cors.enforce.preflight or cors.enforce.actual is true, rejected preflight or actual
+  * requests are answered with 403 Forbidden instead of being passed down the chain, unless
+  * their path begins with one of cors.enforce.exempt.paths.
+  */
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+    throws IOException, ServletException {
 
-      if (m_supportCredentials) {
-        res.setHeader("Access-Control-Allow-Credentials", "true");
+    HttpServletRequest req = (HttpServletRequest)request;
+    HttpServletResponse res = (HttpServletResponse)response;
+
+    ServletExchange exchange = new ServletExchange(req, res);
+    if (m_engine.apply(exchange, exchange)) {
+      // Only a response that varies on Origin has an Origin to keep
+      if (CorsEngine.varyWithOrigin(res.getHeaders("Vary")) == null) {
+        res = new VaryOriginResponse(res);
       }
-    }
 
-    chain.doFilter(req, res);
+      chain.doFilter(req, res);
+    }
   }
 
   /**
   * Performs cleanup operations.
   */
   @Override
-  public void destroy() {}
+  public void destroy() {
+    m_engine.destroy();
+  }
+
+  /**
+  * Returns the number of requests that had the given outcome.
+  */
+  long getOutcomeCount(CorsOutcome outcome) {
+    return m_engine.getOutcomeCount(outcome);
+  }
+
+  /**
+  * Returns the number of preflights answered from the preflight cache. Filters with the same
+  * configuration share a cache, so this counts their preflights too.
+  */
+  public long getPreflightCacheHits() {
+    return m_engine.getPreflightCacheHits();
+  }
+
+  /**
+  * Returns the number of preflights that had to be evaluated because they were not in the
+  * preflight cache.
+  */
+  public long getPreflightCacheMisses() {
+    return m_engine.getPreflightCacheMisses();
+  }
 
   /**
-  * Matches a url with a pattern.
+  * Recompiles the policies from the init parameters and config file, and swaps them in.
   */
-  private boolean match(String url, String pattern) {
-    return pattern.equals("*") || url.equals(pattern);
+  void reloadPolicy() {
+    m_engine.reloadPolicy();
   }
 }
@@ -0,0 +1,193 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+* Counts the outcomes of a CorsEngine and records how long it spends on each request.
+*
+* All counters are striped LongAdders, so recording never contends between request threads.
+* Latencies go into a histogram of power-of-two nanosecond buckets.
+*/
+final class CorsMetrics implements CorsMetricsMBean {
+  private static final int BUCKETS = 64;
+
+  private final CorsEngine m_engine;
+  private final LongAdder[] m_outcomes = new LongAdder[CorsOutcome.values().length];
+  private final LongAdder[] m_latencyBuckets = new LongAdder[BUCKETS];
+  private final LongAdder m_latencyTotal = new LongAdder();
+
+  /**
+  * Creates the metrics for an engine. The engine is consulted for preflight cache statistics.
+  */
+  CorsMetrics(CorsEngine engine) {
+    m_engine = engine;
+
+    for (int i = 0; i < m_outcomes.length; ++i) {
+      m_outcomes[i] = new LongAdder();
+    }
+
+    for (int i = 0; i < BUCKETS; ++i) {
+      m_latencyBuckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+  * Records the outcome of a request.
+  */
+  void record(CorsOutcome outcome) {
+    m_outcomes[outcome.ordinal()].increment();
+  }
+
+  /**
+  * Records the time the filter spent on a request.
+  */
+  void recordLatency(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+
+    // Bucket i holds latencies whose bit length is i, i.e. [2^(i-1), 2^i)
+    m_latencyBuckets[BUCKETS - Long.numberOfLeadingZeros(nanos)].increment();
+    m_latencyTotal.add(nanos);
+  }
+
+  /**
+  * Returns the number of requests that had the given outcome.
+  */
+  long count(CorsOutcome outcome) {
+    return m_outcomes[outcome.ordinal()].sum();
+  }
+
+  @Override
+  public long getNoOrigin() {
+    return count(CorsOutcome.NO_ORIGIN);
+  }
+
+  @Override
+  public long getOriginRejected() {
+    return count(CorsOutcome.ORIGIN_REJECTED);
+  }
+
+  @Override
+  public long getPreflightMissingMethod() {
+    return count(CorsOutcome.PREFLIGHT_MISSING_METHOD);
+  }
+
+  @Override
+  public long getMethodRejected() {
+    return count(CorsOutcome.METHOD_REJECTED);
+  }
+
+  @Override
+  public long getHeadersRejected() {
+    return count(CorsOutcome.HEADERS_REJECTED);
+  }
+
+  @Override
+  public long getPreflightRateLimited() {
+    return count(CorsOutcome.PREFLIGHT_RATE_LIMITED);
+  }
+
+  @Override
+  public long getPreflightApproved() {
+    return count(CorsOutcome.PREFLIGHT_APPROVED);
+  }
+
+  @Override
+  public long getActualApproved() {
+    return count(CorsOutcome.ACTUAL_APPROVED);
+  }
+
+  @Override
+  public long getPreflightCacheHits() {
+    return m_engine.getPreflightCacheHits();
+  }
+
+  @Override
+  public long getPreflightCacheMisses() {
+    return m_engine.getPreflightCacheMisses();
+  }
+
+  @Override
+  public long getLatencyCount() {
+    long count = 0;
+    for (LongAdder bucket : m_latencyBuckets) {
+      count += bucket.sum();
+    }
+
+    return count;
+  }
+
+  @Override
+  public double getLatencyMeanNanos() {
+    long count = getLatencyCount();
+    return count == 0 ? 0 : (double)m_latencyTotal.sum() / count;
+  }
+
+  @Override
+  public long getLatencyP50Nanos() {
+    return percentile(0.5);
+  }
+
+  @Override
+  public long getLatencyP99Nanos() {
+    return percentile(0.99);
+  }
+
+  @Override
+  public long getLatencyP999Nanos() {
+    return percentile(0.999);
+  }
+
+  @Override
+  public void reset() {
+    for (LongAdder outcome : m_outcomes) {
+      outcome.reset();
+    }
+
+    for (LongAdder bucket : m_latencyBuckets) {
+      bucket.reset();
+    }
+
+    m_latencyTotal.reset();
+  }
+
+  /**
+  * Returns the upper bound of the bucket containing the given quantile, or 0 if nothing has
+  * been recorded.
+  */
+  private long percentile(double quantile) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+
+    for (int i = 0; i < BUCKETS; ++i) {
+      counts[i] = m_latencyBuckets[i].sum();
+      total += counts[i];
+    }
+
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = (long)Math.ceil(quantile * total);
+    long seen = 0;
+
+    for (int i = 0; i < BUCKETS; ++i) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i);
+      }
+    }
+
+    return Long.MAX_VALUE;
+  }
+}
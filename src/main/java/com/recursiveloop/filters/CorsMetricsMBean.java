@@ -0,0 +1,42 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+
+/**
+* The JMX management interface of a CorsFilter's metrics.
+*
+* Latency figures cover the time spent in the filter itself, excluding the rest of the chain.
+* Percentiles are estimated from power-of-two buckets, so they are accurate to within a factor
+* of two.
+*/
+public interface CorsMetricsMBean {
+  long getNoOrigin();
+  long getOriginRejected();
+  long getPreflightMissingMethod();
+  long getMethodRejected();
+  long getHeadersRejected();
+  long getPreflightRateLimited();
+  long getPreflightApproved();
+  long getActualApproved();
+
+  long getPreflightCacheHits();
+  long getPreflightCacheMisses();
+
+  long getLatencyCount();
+  double getLatencyMeanNanos();
+  long getLatencyP50Nanos();
+  long getLatencyP99Nanos();
+  long getLatencyP999Nanos();
+
+  /**
+  * Sets all counters and the latency histogram back to zero.
+  */
+  void reset();
+}
@@ -0,0 +1,32 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+
+/**
+* The ways in which the filter can dispose of a request.
+*/
+enum CorsOutcome {
+  /** There was no Origin header, so the request is not a CORS request. */
+  NO_ORIGIN,
+  /** The origin is not allowed. */
+  ORIGIN_REJECTED,
+  /** An OPTIONS request had an Origin but no Access-Control-Request-Method header. */
+  PREFLIGHT_MISSING_METHOD,
+  /** The requested method is not allowed. */
+  METHOD_REJECTED,
+  /** One or more of the requested headers are not allowed. */
+  HEADERS_REJECTED,
+  /** A preflight request was refused because its origin exceeded the preflight rate limit. */
+  PREFLIGHT_RATE_LIMITED,
+  /** A preflight request was approved. */
+  PREFLIGHT_APPROVED,
+  /** An actual request was approved. */
+  ACTUAL_APPROVED
+}
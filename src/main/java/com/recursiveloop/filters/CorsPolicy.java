@@ -0,0 +1,454 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+* An immutable, compiled CORS configuration.
+*
+* A policy is built once from a map of cors.* parameters and never modified, so a filter can
+* publish it through a single volatile reference and read it on the request path without locks.
+* Reconfiguring means compiling a new policy and swapping the reference.
+*/
+final class CorsPolicy {
+  /**
+  * The response header carrying the policy version.
+  */
+  static final String VERSION_HEADER = "X-CORS-Policy-Version";
+
+  /**
+  * The names of the parameters a policy is compiled from.
+  */
+  static final String[] PARAM_NAMES = {
+    "cors.allowed.origins",
+    "cors.allowed.origins.index",
+    "cors.origin.provider",
+    "cors.origin.provider.file",
+    "cors.origin.provider.ttl",
+    "cors.origin.provider.negative.ttl",
+    "cors.origin.provider.cache.size",
+    "cors.origin.provider.negative.size",
+    "cors.origin.provider.threads",
+    "cors.origin.provider.max.lookups",
+    "cors.origin.provider.timeout",
+    "cors.allowed.methods",
+    "cors.allowed.headers",
+    "cors.exposed.headers",
+    "cors.support.credentials",
+    "cors.preflight.maxage",
+    "cors.preflight.maxage.origins",
+    "cors.preflight.echo.requested",
+    "cors.preflight.cache.size",
+    "cors.preflight.cache.ttl",
+    "cors.preflight.terminate",
+    "cors.preflight.rate.limit",
+    "cors.preflight.rate.burst",
+    "cors.preflight.rate.origins",
+    "cors.enforce.preflight",
+    "cors.enforce.actual",
+    "cors.enforce.exempt.paths",
+    "cors.policies",
+    "cors.wildcard.origin",
+    "cors.version"
+  };
+
+  private final OriginMatcher m_originMatcher;
+  private final MappedOriginIndex m_originIndex;
+  private final CachingOriginProvider m_originProvider;
+  private final MethodSet m_setAllowedMethods;
+  private final TokenSet m_setAllowedHeaders;
+  private final boolean m_supportCredentials;
+  private final boolean m_wildcardOrigin;
+  private final String m_preflightMaxAge;
+  private final OriginMatcher[] m_maxAgeOrigins;
+  private final String[] m_maxAges;
+  private final HeaderPlan m_actualHeaders;
+  private final PreflightVerdict m_approved;
+  private final PreflightVerdict[] m_approvedByRule;
+  private final boolean m_echoRequested;
+  private final String m_version;
+  private final PreflightCache m_preflightCache;
+  private final PreflightRateLimiter m_preflightLimiter;
+  private final boolean m_terminatePreflight;
+  private final boolean m_enforcePreflight;
+  private final boolean m_enforceActual;
+  private final String[] m_exemptPaths;
+
+  /**
+  * Compiles a policy. Absent parameters take their default values. The origin provider is
+  * taken from, or added to, the providers already created for other policies, which the caller
+  * closes when the policies are no longer used.
+  *
+  * @throws IllegalArgumentException if a parameter has an invalid value
+  * @throws IOException if the origin index cannot be read
+  */
+  static CorsPolicy compile(Map<String, String> params,
+    Map<Map<String, String>, CachingOriginProvider> providers) throws IOException {
+
+    return new CorsPolicy(params, providers);
+  }
+
+  private CorsPolicy(Map<String, String> params,
+    Map<Map<String, String>, CachingOriginProvider> providers) throws IOException {
+
+    String originIndex = params.get("cors.allowed.origins.index");
+
+    m_originIndex = originIndex == null ? null : MappedOriginIndex.open(Paths.get(originIndex));
+
+    // Origins in cors.allowed.origins add to an index or provider, so with either there are none by default
+    String defaultOrigins = m_originIndex == null && !hasOriginProvider(params) ? "*" : "";
+    m_originMatcher = new OriginMatcher(get(params, "cors.allowed.origins", defaultOrigins).split(","));
+    String allowedMethods = get(params, "cors.allowed.methods", "GET,POST,HEAD,OPTIONS,PUT");
+    m_setAllowedMethods = new MethodSet(allowedMethods);
+    String allowedHeaders = get(params, "cors.allowed.headers",
+      "Content-Type,X-Requested-With,accept,Origin,Access-Control-Request-Method,Access-Control-Request-Headers");
+    m_setAllowedHeaders = TokenSet.parse(allowedHeaders);
+    m_version = version(params);
+
+    // Scripts can only read the version header if it is exposed
+    String exposedHeaders = get(params, "cors.exposed.headers",
+      "Access-Control-Allow-Origin,Access-Control-Allow-Credentials");
+    if (m_version != null) {
+      exposedHeaders += "," + VERSION_HEADER;
+    }
+
+    m_supportCredentials = get(params, "cors.support.credentials", "true").equals("true");
+    m_wildcardOrigin = get(params, "cors.wildcard.origin", "false").equals("true");
+
+    // A literal * is only correct if every origin would get the same answer, and browsers
+    // refuse it on credentialed requests
+    if (m_wildcardOrigin && (!m_originMatcher.matchesAll() || m_supportCredentials)) {
+      throw new IllegalArgumentException(
+        "cors.wildcard.origin requires cors.allowed.origins to be * and cors.support.credentials to be false");
+    }
+    m_preflightMaxAge = get(params, "cors.preflight.maxage", "1000").trim();
+    m_echoRequested = get(params, "cors.preflight.echo.requested", "false").equals("true");
+
+    String maxAgeOrigins = get(params, "cors.preflight.maxage.origins", "").trim();
+    String[] rules = maxAgeOrigins.isEmpty() ? new String[0] : maxAgeOrigins.split("\\s*,\\s*");
+    m_maxAgeOrigins = new OriginMatcher[rules.length];
+    m_maxAges = new String[rules.length];
+
+    for (int i = 0; i < rules.length; ++i) {
+      int eq = rules[i].lastIndexOf('=');
+      if (eq == -1) {
+        throw new IllegalArgumentException("Invalid value for cors.preflight.maxage.origins: " + rules[i]);
+      }
+
+      m_maxAgeOrigins[i] = new OriginMatcher(new String[] { rules[i].substring(0, eq) });
+
+      try {
+        m_maxAges[i] = Integer.toString(Integer.parseInt(rules[i].substring(eq + 1).trim()));
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Invalid value for cors.preflight.maxage.origins: " + rules[i], ex);
+      }
+    }
+
+    // Every approved response of a kind gets the same headers, so they are worked out once.
+    // Expose-Headers only applies to actual responses, and the preflight plans differ only by max-age.
+    m_actualHeaders = actualHeaders(HeaderPlan.list(exposedHeaders, true));
+
+    String methods = HeaderPlan.list(allowedMethods, false);
+    String headers = HeaderPlan.list(allowedHeaders, true);
+    m_approved = new PreflightVerdict(CorsOutcome.PREFLIGHT_APPROVED,
+      preflightHeaders(methods, headers, m_preflightMaxAge));
+    m_approvedByRule = new PreflightVerdict[rules.length];
+
+    for (int i = 0; i < rules.length; ++i) {
+      m_approvedByRule[i] = new PreflightVerdict(CorsOutcome.PREFLIGHT_APPROVED,
+        preflightHeaders(methods, headers, m_maxAges[i]));
+    }
+
+    m_terminatePreflight = get(params, "cors.preflight.terminate", "false").equals("true");
+    m_enforcePreflight = get(params, "cors.enforce.preflight", "false").equals("true");
+    m_enforceActual = get(params, "cors.enforce.actual", "false").equals("true");
+
+    m_exemptPaths = exemptPaths(get(params, "cors.enforce.exempt.paths", ""));
+
+    int preflightCacheSize = getInt(params, "cors.preflight.cache.size", 0);
+    int preflightCacheTtl = getInt(params, "cors.preflight.cache.ttl", 60);
+
+    // A cached verdict mustn't outlive the provider answer it was based on
+    if (hasOriginProvider(params)) {
+      int providerTtl = CachingOriginProvider.shortestTtl(params);
+      if (providerTtl <= 0) {
+        preflightCacheSize = 0;
+      } else if (preflightCacheTtl <= 0 || preflightCacheTtl > providerTtl) {
+        preflightCacheTtl = providerTtl;
+      }
+    }
+
+    m_preflightCache = preflightCacheSize > 0 ?
+      new PreflightCache(preflightCacheSize, preflightCacheTtl) : null;
+
+    m_preflightLimiter = PreflightRateLimiter.fromParams(params);
+
+    // Created last, since it starts threads that would leak if a later parameter were invalid
+    m_originProvider = CachingOriginProvider.shared(params, providers);
+  }
+
+  /**
+  * Returns true if the origin is allowed.
+  */
+  boolean isOriginAllowed(String origin) {
+    return checkOrigin(origin) == CachingOriginProvider.Answer.ALLOWED;
+  }
+
+  /**
+  * Evaluates a preflight request, consulting the preflight cache if there is one.
+  */
+  PreflightVerdict preflight(String origin, String method, String requestHeaders) {
+    if (m_preflightCache == null) {
+      return evaluatePreflight(origin, method, requestHeaders);
+    }
+
+    String key = PreflightCache.key(origin, method, requestHeaders);
+
+    PreflightVerdict verdict = m_preflightCache.get(key);
+    if (verdict == null) {
+      verdict = evaluatePreflight(origin, method, requestHeaders);
+      if (verdict != PreflightVerdict.ORIGIN_UNKNOWN) {
+        m_preflightCache.put(key, verdict);
+      }
+    }
+
+    return verdict;
+  }
+
+  /**
+  * Takes a token from the origin's preflight rate limit. Returns true if the preflight may
+  * proceed, which it always may if no limit is configured.
+  */
+  boolean tryAcquirePreflight(String origin) {
+    return m_preflightLimiter == null
+      || m_preflightLimiter.tryAcquire(OriginCanonicalizer.canonicalize(origin));
+  }
+
+  /**
+  * Returns the Retry-After value for a rate-limited preflight.
+  */
+  String preflightRetryAfter() {
+    return m_preflightLimiter == null ? null : m_preflightLimiter.retryAfter();
+  }
+
+  /**
+  * Returns true if a request path within the application is exempt from enforcement. A prefix
+  * only matches whole segments, so /health covers /health and /health/live but not
+  * /healthcheck-admin.
+  */
+  boolean isExempt(String path) {
+    if (m_exemptPaths.length == 0 || path == null) {
+      return false;
+    }
+
+    for (String prefix : m_exemptPaths) {
+      int n = prefix.length();
+      if (path.startsWith(prefix)
+        && (path.length() == n || prefix.charAt(n - 1) == '/' || path.charAt(n) == '/')) {
+
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  /**
+  * Returns the headers of an approved actual response.
+  */
+  HeaderPlan actualHeaders() {
+    return m_actualHeaders;
+  }
+
+  boolean supportCredentials() {
+    return m_supportCredentials;
+  }
+
+  /**
+  * Returns true if approved responses carry a literal * rather than echoing the origin, so
+  * they do not vary by origin.
+  */
+  boolean wildcardOrigin() {
+    return m_wildcardOrigin;
+  }
+
+  /**
+  * Returns the policy version sent in X-CORS-Policy-Version, or null if none is configured.
+  */
+  String version() {
+    return m_version;
+  }
+
+  boolean terminatePreflight() {
+    return m_terminatePreflight;
+  }
+
+  boolean enforcePreflight() {
+    return m_enforcePreflight;
+  }
+
+  boolean enforceActual() {
+    return m_enforceActual;
+  }
+
+  /**
+  * Returns the preflight cache, or null if it is disabled.
+  */
+  PreflightCache preflightCache() {
+    return m_preflightCache;
+  }
+
+  /**
+  * Checks the origin, requested method and requested headers of a preflight request.
+  */
+  private PreflightVerdict evaluatePreflight(String origin, String method, String requestHeaders) {
+    CachingOriginProvider.Answer answer = checkOrigin(origin);
+    if (answer == CachingOriginProvider.Answer.UNKNOWN) {
+      return PreflightVerdict.ORIGIN_UNKNOWN;
+    }
+
+    if (answer == CachingOriginProvider.Answer.DENIED) {
+      return PreflightVerdict.ORIGIN_REJECTED;
+    }
+
+    if (!m_setAllowedMethods.contains(method)) {
+      return PreflightVerdict.METHOD_REJECTED;
+    }
+
+    if (requestHeaders != null && !m_setAllowedHeaders.containsAll(requestHeaders)) {
+      return PreflightVerdict.HEADERS_REJECTED;
+    }
+
+    int rule = maxAgeRule(origin);
+
+    // Granting only what was asked for means a long-lived cached preflight can't outlast a
+    // narrowing of the policy for anything the client didn't already use
+    if (m_echoRequested) {
+      return new PreflightVerdict(CorsOutcome.PREFLIGHT_APPROVED,
+        preflightHeaders(method, requestHeaders == null ? "" : HeaderPlan.list(requestHeaders, true),
+          rule == -1 ? m_preflightMaxAge : m_maxAges[rule]));
+    }
+
+    return rule == -1 ? m_approved : m_approvedByRule[rule];
+  }
+
+  /**
+  * Checks the origin against the allowed origins, the origin index and then the provider. The
+  * answer is UNKNOWN only if the provider had to be asked and couldn't answer.
+  */
+  private CachingOriginProvider.Answer checkOrigin(String origin) {
+    if (m_originMatcher.matchesAll()) {
+      return CachingOriginProvider.Answer.ALLOWED;
+    }
+
+    String canonical = OriginCanonicalizer.canonicalize(origin);
+
+    if (m_originMatcher.matchesCanonical(canonical)
+      || (m_originIndex != null && m_originIndex.contains(canonical))) {
+
+      return CachingOriginProvider.Answer.ALLOWED;
+    }
+
+    return m_originProvider == null ?
+      CachingOriginProvider.Answer.DENIED : m_originProvider.check(canonical);
+  }
+
+  /**
+  * Returns the index of the first cors.preflight.maxage.origins rule matching the origin, or
+  * -1 if none does and cors.preflight.maxage applies.
+  */
+  private int maxAgeRule(String origin) {
+    for (int i = 0; i < m_maxAgeOrigins.length; ++i) {
+      if (m_maxAgeOrigins[i].matches(origin)) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private HeaderPlan actualHeaders(String exposedHeaders) {
+    return new HeaderPlan(!m_wildcardOrigin,
+      HeaderPlan.ALLOW_ORIGIN, m_wildcardOrigin ? "*" : null,
+      "Access-Control-Expose-Headers", exposedHeaders,
+      "Access-Control-Allow-Credentials", m_supportCredentials ? "true" : null,
+      VERSION_HEADER, m_version);
+  }
+
+  private HeaderPlan preflightHeaders(String methods, String headers, String maxAge) {
+    return new HeaderPlan(!m_wildcardOrigin,
+      HeaderPlan.ALLOW_ORIGIN, m_wildcardOrigin ? "*" : null,
+      "Access-Control-Allow-Methods", methods,
+      "Access-Control-Allow-Headers", headers,
+      "Access-Control-Max-Age", maxAge,
+      "Access-Control-Allow-Credentials", m_supportCredentials ? "true" : null,
+      VERSION_HEADER, m_version);
+  }
+
+  /**
+  * Returns the policy version configured in cors.version. The value auto is replaced by a
+  * fingerprint of the parameters, so the version changes whenever the policy does.
+  */
+  private static String version(Map<String, String> params) throws IOException {
+    String version = params.get("cors.version");
+    if (version == null || version.trim().isEmpty()) {
+      return null;
+    }
+
+    return version.trim().equals("auto") ? PolicyRegistry.fingerprint(params).substring(0, 16) : version.trim();
+  }
+
+  /**
+  * Splits cors.enforce.exempt.paths, dropping empty items, which would otherwise exempt every
+  * path.
+  */
+  private static String[] exemptPaths(String list) {
+    List<String> paths = new ArrayList<String>();
+    for (String path : list.split(",")) {
+      if (!path.trim().isEmpty()) {
+        paths.add(path.trim());
+      }
+    }
+
+    return paths.toArray(new String[paths.size()]);
+  }
+
+  private static boolean hasOriginProvider(Map<String, String> params) {
+    return params.get("cors.origin.provider") != null || params.get("cors.origin.provider.file") != null;
+  }
+
+  private static String get(Map<String, String> params, String name, String defaultValue) {
+    String value = params.get(name);
+    return value == null ? defaultValue : value;
+  }
+
+  /**
+  * Parses an integer parameter, falling back to a default when it is absent.
+  *
+  * @throws IllegalArgumentException if the value is not an integer
+  */
+  static int getInt(Map<String, String> params, String name, int defaultValue) {
+    String value = params.get(name);
+    if (value == null) {
+      return defaultValue;
+    }
+
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Invalid value for " + name + ": " + value, ex);
+    }
+  }
+}
@@ -0,0 +1,38 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+
+/**
+* The parts of an HTTP request that CorsEngine reads.
+*
+* Adapters should read from the container's own request as each method is called, rather than
+* copying headers up front. The engine asks for at most a handful of headers per request.
+*/
+public interface CorsRequest {
+  /**
+  * Returns the request method, such as GET or OPTIONS.
+  */
+  String getMethod();
+
+  /**
+  * Returns the first value of the named header, or null if it is absent.
+  */
+  String getHeader(String name);
+
+  /**
+  * Returns the request path within the application, or null if it is unknown.
+  *
+  * Policies and exemptions are chosen by this path, so it must be the one the request is
+  * dispatched by: decoded, without path parameters, and with . and .. segments resolved. For
+  * a servlet that is the servlet path followed by the path info. Adapters that only have the
+  * raw request target can get it from RequestPath.normalize().
+  */
+  String getPath();
+}
@@ -0,0 +1,33 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.Collection;
+
+
+/**
+* The parts of an HTTP response that CorsEngine writes.
+*/
+public interface CorsResponse {
+  /**
+  * Sets a header, replacing any values it already has.
+  */
+  void setHeader(String name, String value);
+
+  /**
+  * Returns the values the named header already has. The engine reads only Vary, so that it can
+  * merge Origin into it.
+  */
+  Collection<String> getHeaders(String name);
+
+  /**
+  * Sets the status code. The engine only does this when the request is not to proceed.
+  */
+  void setStatus(int status);
+}
@@ -0,0 +1,200 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+* Records a sample of CORS decisions and writes them to a logger on a background thread.
+*
+* Request threads claim a slot in a preallocated ring buffer with a single compare-and-set and
+* publish it with a volatile write, so they never block or perform I/O. If the buffer is full
+* the event is dropped and counted. The background thread drains the buffer to the
+* com.recursiveloop.filters.DecisionTrace logger at INFO level.
+*/
+final class DecisionTrace {
+  private final static Logger m_logger = Logger.getLogger(DecisionTrace.class.getName());
+
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int SAMPLE_SCALE = 1 << 24;
+
+  private final Slot[] m_slots;
+  private final int m_mask;
+  private final int m_sampleThreshold;
+  private final OriginMatcher m_origins;
+  private final AtomicLong m_head = new AtomicLong();
+  private final AtomicLong m_tail = new AtomicLong();
+  private final LongAdder m_dropped = new LongAdder();
+  private final Thread m_thread;
+  private volatile boolean m_running = true;
+
+  /**
+  * A preallocated event. The sequence is published last, after the other fields are written.
+  */
+  private static final class Slot {
+    volatile long sequence;
+    String origin;
+    String method;
+    String requestHeaders;
+    CorsOutcome outcome;
+  }
+
+  /**
+  * Starts tracing.
+  *
+  * @param capacity the size of the ring buffer, rounded up to a power of two
+  * @param sampleRate the fraction of decisions to record, between 0 and 1
+  * @param origins the origins to record, or null to record all origins
+  */
+  DecisionTrace(int capacity, double sampleRate, OriginMatcher origins) {
+    int size = 2;
+    while (size < capacity) {
+      size <<= 1;
+    }
+
+    m_slots = new Slot[size];
+    for (int i = 0; i < size; ++i) {
+      m_slots[i] = new Slot();
+      m_slots[i].sequence = i;
+    }
+
+    m_mask = size - 1;
+    m_sampleThreshold = (int)Math.round(Math.max(0, Math.min(1, sampleRate)) * SAMPLE_SCALE);
+    m_origins = origins;
+
+    m_thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drainLoop();
+      }
+    }, "cors-decision-trace");
+
+    m_thread.setDaemon(true);
+    m_thread.start();
+  }
+
+  /**
+  * Records a decision if it is selected by the sampling rate and origin filter.
+  */
+  void record(String origin, String method, String requestHeaders, CorsOutcome outcome) {
+    if (m_sampleThreshold < SAMPLE_SCALE
+      && ThreadLocalRandom.current().nextInt(SAMPLE_SCALE) >= m_sampleThreshold) {
+      return;
+    }
+
+    if (m_origins != null && !m_origins.matches(origin)) {
+      return;
+    }
+
+    long seq;
+    Slot slot;
+    while (true) {
+      seq = m_head.get();
+      slot = m_slots[(int)seq & m_mask];
+
+      long diff = slot.sequence - seq;
+      if (diff == 0) {
+        if (m_head.compareAndSet(seq, seq + 1)) {
+          break;
+        }
+      } else if (diff < 0) {
+        // The consumer has not yet released this slot from the previous lap
+        m_dropped.increment();
+        return;
+      }
+
+      // Otherwise another producer claimed the slot first, so try again
+    }
+
+    slot.origin = origin;
+    slot.method = method;
+    slot.requestHeaders = requestHeaders;
+    slot.outcome = outcome;
+    slot.sequence = seq + 1;
+  }
+
+  /**
+  * Returns the number of sampled events dropped because the buffer was full.
+  */
+  long dropped() {
+    return m_dropped.sum();
+  }
+
+  /**
+  * Stops the background thread after it has written any buffered events.
+  */
+  void close() {
+    m_running = false;
+    LockSupport.unpark(m_thread);
+
+    try {
+      m_thread.join(1000);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void drainLoop() {
+    while (m_running) {
+      if (drain() == 0) {
+        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+      }
+    }
+
+    drain();
+  }
+
+  /**
+  * Writes all published events to the log and returns how many there were.
+  */
+  int drain() {
+    int count = 0;
+    long tail = m_tail.get();
+
+    while (true) {
+      Slot slot = m_slots[(int)tail & m_mask];
+      if (slot.sequence != tail + 1) {
+        break;
+      }
+
+      String origin = slot.origin;
+      String method = slot.method;
+      String requestHeaders = slot.requestHeaders;
+      CorsOutcome outcome = slot.outcome;
+
+      slot.origin = null;
+      slot.method = null;
+      slot.requestHeaders = null;
+      slot.outcome = null;
+
+      // Release the slot for the producers' next lap
+      slot.sequence = tail + m_slots.length;
+      m_tail.set(++tail);
+      ++count;
+
+      log(origin, method, requestHeaders, outcome);
+    }
+
+    return count;
+  }
+
+  private static void log(String origin, String method, String requestHeaders, CorsOutcome outcome) {
+    boolean allowed = outcome == CorsOutcome.PREFLIGHT_APPROVED || outcome == CorsOutcome.ACTUAL_APPROVED;
+
+    m_logger.log(Level.INFO, "CORS {0} origin={1} method={2} requestHeaders={3} reason={4}",
+      new Object[] { allowed ? "allowed" : "rejected", origin, method, requestHeaders, outcome });
+  }
+}
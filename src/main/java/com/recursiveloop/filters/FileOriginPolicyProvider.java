@@ -0,0 +1,82 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+* An OriginPolicyProvider backed by a local text file, named by cors.origin.provider.file.
+*
+* The file has one origin per line. Blank lines and lines beginning with # are ignored. The file
+* is re-read when its modification time changes, checked at most once a second.
+*/
+public class FileOriginPolicyProvider implements OriginPolicyProvider {
+  private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private volatile Path m_file;
+  private volatile Set<String> m_origins = new HashSet<String>();
+  private volatile long m_lastModified = -1;
+  private volatile long m_lastChecked = 0;
+
+  @Override
+  public void init(Map<String, String> params) throws IOException {
+    String file = params.get("cors.origin.provider.file");
+    if (file == null) {
+      throw new IllegalArgumentException("cors.origin.provider.file is not set");
+    }
+
+    m_file = Paths.get(file);
+    reload();
+  }
+
+  @Override
+  public boolean isAllowed(String origin) throws IOException {
+    long now = System.nanoTime();
+    if (now - m_lastChecked >= CHECK_INTERVAL_NANOS) {
+      m_lastChecked = now;
+
+      if (Files.getLastModifiedTime(m_file).toMillis() != m_lastModified) {
+        reload();
+      }
+    }
+
+    return m_origins.contains(origin);
+  }
+
+  @Override
+  public void destroy() {}
+
+  private void reload() throws IOException {
+    long lastModified = Files.getLastModifiedTime(m_file).toMillis();
+    Set<String> origins = new HashSet<String>();
+
+    try (BufferedReader reader = Files.newBufferedReader(m_file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          origins.add(OriginCanonicalizer.compute(line));
+        }
+      }
+    }
+
+    m_origins = origins;
+    m_lastModified = lastModified;
+  }
+}
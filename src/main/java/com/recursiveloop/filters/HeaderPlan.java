@@ -0,0 +1,110 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+
+/**
+* The CORS headers of one kind of approved response, compiled with the policy.
+*
+* Every value is fixed except Access-Control-Allow-Origin, which echoes the request's origin
+* unless the policy sends a literal *. Headers with empty values are left out, so writing a plan
+* is a short loop of setHeader calls with nothing to work out per request.
+*/
+final class HeaderPlan {
+  static final String ALLOW_ORIGIN = "Access-Control-Allow-Origin";
+
+  private final boolean m_echoOrigin;
+  private final String[] m_names;
+  private final String[] m_values;
+
+  /**
+  * Creates a plan from alternating header names and values. Pairs whose value is null or empty
+  * are dropped. If echoOrigin is true the plan starts with Access-Control-Allow-Origin set to the
+  * request's origin.
+  */
+  HeaderPlan(boolean echoOrigin, String... namesAndValues) {
+    List<String> names = new ArrayList<String>();
+    List<String> values = new ArrayList<String>();
+
+    for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+      String value = namesAndValues[i + 1];
+      if (value != null && !value.isEmpty()) {
+        names.add(namesAndValues[i]);
+        values.add(value);
+      }
+    }
+
+    m_echoOrigin = echoOrigin;
+    m_names = names.toArray(new String[names.size()]);
+    m_values = values.toArray(new String[values.size()]);
+  }
+
+  /**
+  * Sets the plan's headers on a response to a request from the given origin.
+  */
+  void writeTo(CorsResponse res, String origin) {
+    if (m_echoOrigin) {
+      res.setHeader(ALLOW_ORIGIN, origin);
+    }
+
+    for (int i = 0; i < m_names.length; ++i) {
+      res.setHeader(m_names[i], m_values[i]);
+    }
+  }
+
+  /**
+  * Returns the fixed value of a header, or null if the plan doesn't set it or it echoes the origin.
+  */
+  String get(String name) {
+    for (int i = 0; i < m_names.length; ++i) {
+      if (m_names[i].equalsIgnoreCase(name)) {
+        return m_values[i];
+      }
+    }
+
+    return null;
+  }
+
+  /**
+  * Returns the number of headers the plan sets.
+  */
+  int size() {
+    return m_names.length + (m_echoOrigin ? 1 : 0);
+  }
+
+  /**
+  * Normalises a comma-separated list for a header value: items are trimmed, and empty and
+  * repeated items dropped. Header names repeat regardless of case, methods only exactly.
+  */
+  static String list(String list, boolean ignoreCase) {
+    StringBuilder result = new StringBuilder(list.length());
+    Set<String> seen = new HashSet<String>();
+
+    for (String item : list.split(",")) {
+      item = item.trim();
+      if (item.isEmpty() || !seen.add(ignoreCase ? item.toLowerCase(Locale.ENGLISH) : item)) {
+        continue;
+      }
+
+      if (result.length() > 0) {
+        result.append(',');
+      }
+
+      result.append(item);
+    }
+
+    return result.toString();
+  }
+}
@@ -0,0 +1,201 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+* A read-only, memory-mapped hash index of exact origins, as written by OriginIndexBuilder.
+*
+* The index lives off-heap and is paged in on demand. Opening it reads only the slot table, to
+* check that every entry lies within the file and that lookups will find an empty slot. Lookups
+* read the mapped bytes directly and do not create Strings.
+*
+* File layout (big-endian):
+*
+*   int magic "CORS", int version, int slot count (a power of two), int entry count
+*   slot count x { int hash, int entry offset + 1, or 0 if the slot is empty }
+*   entries: { unsigned short length, length bytes of lower-case ASCII }
+*
+* Entry offsets are relative to the start of the entries. Collisions are resolved by linear
+* probing.
+*/
+final class MappedOriginIndex {
+  static final int MAGIC = 0x434F5253;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 16;
+  static final int SLOT_SIZE = 8;
+
+  private final ByteBuffer m_buffer;
+  private final int m_mask;
+  private final int m_size;
+  private final int m_entriesStart;
+
+  private MappedOriginIndex(ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not an origin index");
+    }
+
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported origin index version " + buffer.getInt(4));
+    }
+
+    int slots = buffer.getInt(8);
+    if (slots <= 0 || (slots & (slots - 1)) != 0
+      || HEADER_SIZE + (long)slots * SLOT_SIZE > buffer.capacity()) {
+
+      throw new IOException("Corrupt origin index");
+    }
+
+    m_buffer = buffer;
+    m_mask = slots - 1;
+    m_size = buffer.getInt(12);
+    m_entriesStart = HEADER_SIZE + slots * SLOT_SIZE;
+
+    validate(slots);
+  }
+
+  /**
+  * Checks the slot table, so a truncated or corrupt file fails here rather than on a request.
+  */
+  private void validate(int slots) throws IOException {
+    int entriesLength = m_buffer.capacity() - m_entriesStart;
+    int used = 0;
+
+    for (int slot = 0; slot < slots; ++slot) {
+      int offset = m_buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+      if (offset == 0) {
+        continue;
+      }
+
+      // The offset is one past the entry's start, and the entry is a length and its bytes
+      long start = (offset & 0xffffffffL) - 1;
+      if (start + 2 > entriesLength
+        || start + 2 + (m_buffer.getShort(m_entriesStart + (int)start) & 0xffff) > entriesLength) {
+
+        throw new IOException("Corrupt origin index: entry outside the file");
+      }
+
+      ++used;
+    }
+
+    if (used == slots) {
+      throw new IOException("Corrupt origin index: no empty slot");
+    }
+
+    if (used != m_size) {
+      throw new IOException("Corrupt origin index: " + used + " entries but header says " + m_size);
+    }
+  }
+
+  /**
+  * Maps an index file into memory.
+  */
+  static MappedOriginIndex open(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new MappedOriginIndex(buffer.order(ByteOrder.BIG_ENDIAN));
+    }
+  }
+
+  /**
+  * Returns the number of origins in the index.
+  */
+  int size() {
+    return m_size;
+  }
+
+  /**
+  * Returns true if the origin is in the index. The comparison is ASCII case-insensitive.
+  */
+  boolean contains(String origin) {
+    int hash = hash(origin);
+    if (hash == 0 && !isAscii(origin)) {
+      return false;
+    }
+
+    int slot = hash & m_mask;
+
+    // Opening guarantees an empty slot, but never probe more than the whole table
+    for (int probes = 0; probes <= m_mask; ++probes) {
+      int position = HEADER_SIZE + slot * SLOT_SIZE;
+      int offset = m_buffer.getInt(position + 4);
+
+      if (offset == 0) {
+        return false;
+      }
+
+      if (m_buffer.getInt(position) == hash && entryEquals(m_entriesStart + offset - 1, origin)) {
+        return true;
+      }
+
+      slot = (slot + 1) & m_mask;
+    }
+
+    return false;
+  }
+
+  private boolean entryEquals(int position, String origin) {
+    int length = m_buffer.getShort(position) & 0xffff;
+    if (length != origin.length()) {
+      return false;
+    }
+
+    for (int i = 0; i < length; ++i) {
+      if (m_buffer.get(position + 2 + i) != fold(origin.charAt(i))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+  * The FNV-1a hash of the ASCII-lower-cased origin. Returns 0 for non-ASCII input, which can
+  * never be in the index.
+  */
+  static int hash(String origin) {
+    int h = 0x811C9DC5;
+    for (int i = 0; i < origin.length(); ++i) {
+      char c = origin.charAt(i);
+      if (c > 0x7F) {
+        return 0;
+      }
+
+      h ^= fold(c);
+      h *= 0x01000193;
+    }
+
+    return h;
+  }
+
+  private static boolean isAscii(String s) {
+    for (int i = 0; i < s.length(); ++i) {
+      if (s.charAt(i) > 0x7F) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static byte fold(char c) {
+    if (c >= 'A' && c <= 'Z') {
+      c += 'a' - 'A';
+    }
+
+    return (byte)c;
+  }
+}
@@ -0,0 +1,65 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+* An immutable set of HTTP methods.
+*
+* The standard methods are held as a bitset. Any extension methods fall back to a TokenSet.
+* Comparison is ASCII case-insensitive.
+*/
+final class MethodSet {
+  private static final TokenSet STANDARD = new TokenSet(new String[] {
+    "GET", "HEAD", "POST", "PUT", "DELETE", "CONNECT", "OPTIONS", "TRACE", "PATCH"
+  });
+
+  private final long m_bits;
+  private final TokenSet m_extensions;
+
+  /**
+  * Compiles a comma-separated list of methods.
+  */
+  MethodSet(String list) {
+    long bits = 0;
+    List<String> extensions = new ArrayList<String>();
+
+    for (String item : list.split(",")) {
+      String method = item.trim();
+      if (method.isEmpty()) {
+        continue;
+      }
+
+      int id = STANDARD.indexOf(method, 0, method.length());
+      if (id != -1) {
+        bits |= 1L << id;
+      } else {
+        extensions.add(method);
+      }
+    }
+
+    m_bits = bits;
+    m_extensions = new TokenSet(extensions.toArray(new String[extensions.size()]));
+  }
+
+  /**
+  * Returns true if the method is in the set.
+  */
+  boolean contains(String method) {
+    int id = STANDARD.indexOf(method, 0, method.length());
+    if (id != -1) {
+      return (m_bits & (1L << id)) != 0;
+    }
+
+    return m_extensions.size() != 0 && m_extensions.contains(method);
+  }
+}
@@ -0,0 +1,193 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.net.IDN;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+* Reduces origins to a canonical form, so that origins which are the same in the sense of
+* RFC 6454 compare equal as strings.
+*
+* The scheme and host are lower-cased, an internationalised host is converted to its punycode
+* (ASCII) form, a trailing dot on the host is removed, and a port that is the scheme's default
+* is dropped. So https://Example.COM.:443 becomes https://example.com. Values that aren't
+* scheme://host[:port], such as null, are only lower-cased.
+*
+* Browsers send the same few Origin values over and over, so results are memoised in a
+* bounded map shared by every policy. Only values that parse as scheme://host[:port] and are no
+* longer than a host name allows are memoised, so junk Origin headers can't fill the map with
+* large keys or push out the real origins.
+*/
+final class OriginCanonicalizer {
+  private static final int MAX_MEMO_SIZE = 10000;
+  private static final int EVICTION_SCAN = 8;
+  private static final int MAX_MEMO_KEY_LENGTH = 255;
+
+  private static final ConcurrentHashMap<String, String> m_memo = new ConcurrentHashMap<String, String>();
+
+  private OriginCanonicalizer() {}
+
+  /**
+  * Returns the canonical form of an origin, from the memo where possible.
+  */
+  static String canonicalize(String origin) {
+    if (origin.length() > MAX_MEMO_KEY_LENGTH) {
+      return compute(origin);
+    }
+
+    String canonical = m_memo.get(origin);
+    if (canonical != null) {
+      return canonical;
+    }
+
+    String s = origin.trim();
+    canonical = parse(s);
+    if (canonical == null) {
+      return s.toLowerCase(Locale.ENGLISH);
+    }
+
+    if (m_memo.size() >= MAX_MEMO_SIZE) {
+      // Any entry will do; a popular origin evicted here is back after its next request
+      Iterator<String> it = m_memo.keySet().iterator();
+      for (int i = 0; i < EVICTION_SCAN && it.hasNext(); ++i) {
+        it.next();
+        it.remove();
+      }
+    }
+
+    m_memo.put(origin, canonical);
+    return canonical;
+  }
+
+  /**
+  * Returns the number of memoised origins.
+  */
+  static int memoSize() {
+    return m_memo.size();
+  }
+
+  /**
+  * Canonicalises an origin without consulting the memo. Wildcard labels such as *.example.com
+  * pass through unchanged, so configured patterns can be canonicalised too.
+  */
+  static String compute(String origin) {
+    String s = origin.trim();
+    String canonical = parse(s);
+
+    return canonical != null ? canonical : s.toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+  * Returns the canonical form of a trimmed scheme://host[:port], or null if it isn't one.
+  */
+  private static String parse(String s) {
+    int schemeEnd = s.indexOf("://");
+    if (schemeEnd <= 0) {
+      return null;
+    }
+
+    String scheme = s.substring(0, schemeEnd).toLowerCase(Locale.ENGLISH);
+    int hostStart = schemeEnd + 3;
+
+    // An IPv6 literal is bracketed, and contains colons of its own
+    int hostEnd;
+    if (s.startsWith("[", hostStart)) {
+      int bracket = s.indexOf(']', hostStart);
+      if (bracket == -1) {
+        return null;
+      }
+
+      hostEnd = bracket + 1;
+    } else {
+      hostEnd = hostStart;
+      while (hostEnd < s.length() && s.charAt(hostEnd) != ':' && s.charAt(hostEnd) != '/') {
+        ++hostEnd;
+      }
+    }
+
+    String host = s.substring(hostStart, hostEnd);
+    String port = null;
+    int end = hostEnd;
+
+    if (end < s.length() && s.charAt(end) == ':') {
+      int portEnd = end + 1;
+      while (portEnd < s.length() && s.charAt(portEnd) >= '0' && s.charAt(portEnd) <= '9') {
+        ++portEnd;
+      }
+
+      port = s.substring(end + 1, portEnd);
+      end = portEnd;
+    }
+
+    // An origin has no path, but tolerate a trailing slash from hand-written configuration
+    if (end == s.length() - 1 && s.charAt(end) == '/') {
+      ++end;
+    }
+
+    if (end != s.length() || host.isEmpty() || (port != null && port.isEmpty())) {
+      return null;
+    }
+
+    StringBuilder result = new StringBuilder(s.length() + 8);
+    result.append(scheme).append("://").append(canonicalHost(host));
+
+    if (port != null) {
+      int number;
+      try {
+        number = Integer.parseInt(port);
+      } catch (NumberFormatException ex) {
+        return null;
+      }
+
+      if (number != defaultPort(scheme)) {
+        result.append(':').append(number);
+      }
+    }
+
+    return result.toString();
+  }
+
+  private static String canonicalHost(String host) {
+    if (host.startsWith("[")) {
+      return host.toLowerCase(Locale.ENGLISH);
+    }
+
+    if (host.endsWith(".")) {
+      host = host.substring(0, host.length() - 1);
+    }
+
+    try {
+      host = IDN.toASCII(host, IDN.ALLOW_UNASSIGNED);
+    } catch (IllegalArgumentException ex) {
+      // Not a valid internationalised name, so it can only ever match itself
+    }
+
+    return host.toLowerCase(Locale.ENGLISH);
+  }
+
+  /**
+  * Returns the default port of a scheme, or -1 if it has none that we know of.
+  */
+  private static int defaultPort(String scheme) {
+    switch (scheme) {
+      case "http":
+      case "ws":
+        return 80;
+      case "https":
+      case "wss":
+        return 443;
+      default:
+        return -1;
+    }
+  }
+}
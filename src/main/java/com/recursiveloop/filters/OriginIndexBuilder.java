@@ -0,0 +1,154 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+* An offline tool that builds a memory-mappable origin index for the
+* cors.allowed.origins.index parameter.
+*
+* Usage: java -cp corsfilter.jar com.recursiveloop.filters.OriginIndexBuilder origins.txt origins.idx
+*
+* The input has one exact origin per line. Blank lines and lines beginning with # are ignored.
+* Wildcard patterns are not supported in an index; list them in cors.allowed.origins instead.
+*/
+public final class OriginIndexBuilder {
+  private OriginIndexBuilder() {}
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: OriginIndexBuilder <origins.txt> <origins.idx>");
+      System.exit(1);
+    }
+
+    List<String> origins = new ArrayList<String>();
+    try (BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          origins.add(line);
+        }
+      }
+    }
+
+    int count = build(origins, Paths.get(args[1]));
+    System.out.println("Wrote " + count + " origins to " + args[1]);
+  }
+
+  /**
+  * Writes an index of the given origins, replacing the output file atomically. Returns the
+  * number of distinct origins written.
+  *
+  * @throws IllegalArgumentException if an origin is a wildcard pattern, is not ASCII or is too long
+  */
+  public static int build(Collection<String> origins, Path out) throws IOException {
+    Set<String> distinct = new LinkedHashSet<String>();
+    for (String origin : origins) {
+      String s = OriginCanonicalizer.compute(origin);
+
+      if (s.indexOf('*') != -1) {
+        throw new IllegalArgumentException("Wildcards are not supported in an origin index: " + origin);
+      }
+
+      if (!isAscii(s)) {
+        throw new IllegalArgumentException("Origin is not ASCII: " + origin);
+      }
+
+      if (s.length() > 0xffff) {
+        throw new IllegalArgumentException("Origin is too long: " + origin);
+      }
+
+      if (!s.isEmpty()) {
+        distinct.add(s);
+      }
+    }
+
+    int slots = 2;
+    while (slots < distinct.size() * 2) {
+      slots <<= 1;
+    }
+
+    long entriesSize = 0;
+    for (String s : distinct) {
+      entriesSize += 2 + s.length();
+    }
+
+    long total = MappedOriginIndex.HEADER_SIZE + (long)slots * MappedOriginIndex.SLOT_SIZE + entriesSize;
+    if (total > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Too many origins for a single index");
+    }
+
+    ByteBuffer slotTable = ByteBuffer.allocate(slots * MappedOriginIndex.SLOT_SIZE).order(ByteOrder.BIG_ENDIAN);
+    ByteBuffer entries = ByteBuffer.allocate((int)entriesSize).order(ByteOrder.BIG_ENDIAN);
+    int mask = slots - 1;
+
+    for (String s : distinct) {
+      int hash = MappedOriginIndex.hash(s);
+      int slot = hash & mask;
+      while (slotTable.getInt(slot * MappedOriginIndex.SLOT_SIZE + 4) != 0) {
+        slot = (slot + 1) & mask;
+      }
+
+      slotTable.putInt(slot * MappedOriginIndex.SLOT_SIZE, hash);
+      slotTable.putInt(slot * MappedOriginIndex.SLOT_SIZE + 4, entries.position() + 1);
+
+      entries.putShort((short)s.length());
+      entries.put(s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    ByteBuffer header = ByteBuffer.allocate(MappedOriginIndex.HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    header.putInt(MappedOriginIndex.MAGIC);
+    header.putInt(MappedOriginIndex.VERSION);
+    header.putInt(slots);
+    header.putInt(distinct.size());
+
+    Path dir = out.toAbsolutePath().getParent();
+    Path tmp = Files.createTempFile(dir, out.getFileName().toString(), ".tmp");
+    try {
+      try (OutputStream stream = Files.newOutputStream(tmp)) {
+        stream.write(header.array());
+        stream.write(slotTable.array());
+        stream.write(entries.array());
+      }
+
+      Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+
+    return distinct.size();
+  }
+
+  private static boolean isAscii(String s) {
+    for (int i = 0; i < s.length(); ++i) {
+      if (s.charAt(i) > 0x7F) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+}
@@ -0,0 +1,186 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+* An index of allowed origins, compiled once from the configured allowlist.
+*
+* Exact origins are held in a hash set. Subdomain patterns such as https://*.example.com are
+* compiled into a trie of reversed host labels, so matching costs roughly the length of the
+* origin rather than the number of patterns.
+*
+* Patterns and origins are compared in the canonical form given by OriginCanonicalizer, so
+* https://Example.com:443 matches https://example.com.
+*/
+final class OriginMatcher {
+  private final boolean m_matchAll;
+  private final Set<String> m_exact;
+  private final Map<String, Node> m_wildcards;
+
+  /**
+  * A trie node for one host label.
+  */
+  private static final class Node {
+    final Map<String, Node> children = new HashMap<String, Node>();
+    boolean matchSubdomains = false;
+  }
+
+  /**
+  * Compiles the given origin patterns.
+  *
+  * The pattern "*" matches any origin. A pattern whose host begins with "*." matches any
+  * subdomain (at any depth) of the remaining host, with the same scheme and port.
+  */
+  OriginMatcher(String[] patterns) {
+    boolean matchAll = false;
+    Set<String> exact = new HashSet<String>(patterns.length * 2);
+    Map<String, Node> wildcards = new HashMap<String, Node>();
+
+    for (String pattern : patterns) {
+      String s = OriginCanonicalizer.compute(pattern);
+
+      if (s.isEmpty()) {
+        continue;
+      }
+
+      if (s.equals("*")) {
+        matchAll = true;
+        continue;
+      }
+
+      int hostStart = hostStart(s);
+
+      if (s.startsWith("*.", hostStart)) {
+        int hostEnd = hostEnd(s, hostStart);
+        String key = s.substring(0, hostStart) + s.substring(hostEnd);
+
+        Node node = wildcards.get(key);
+        if (node == null) {
+          node = new Node();
+          wildcards.put(key, node);
+        }
+
+        int end = hostEnd;
+        while (end > hostStart + 2) {
+          int dot = s.lastIndexOf('.', end - 1);
+          String label = s.substring(dot + 1, end);
+
+          Node child = node.children.get(label);
+          if (child == null) {
+            child = new Node();
+            node.children.put(label, child);
+          }
+
+          node = child;
+          end = dot;
+        }
+
+        node.matchSubdomains = true;
+      } else {
+        exact.add(s);
+      }
+    }
+
+    m_matchAll = matchAll;
+    m_exact = exact;
+    m_wildcards = wildcards;
+  }
+
+  /**
+  * Returns true if the allowlist contains "*".
+  */
+  boolean matchesAll() {
+    return m_matchAll;
+  }
+
+  /**
+  * Returns true if the origin is in the allowlist.
+  */
+  boolean matches(String origin) {
+    return m_matchAll || matchesCanonical(OriginCanonicalizer.canonicalize(origin));
+  }
+
+  /**
+  * Returns true if an origin already in canonical form is in the allowlist.
+  */
+  boolean matchesCanonical(String s) {
+    if (m_matchAll) {
+      return true;
+    }
+
+    if (m_exact.contains(s)) {
+      return true;
+    }
+
+    if (m_wildcards.isEmpty()) {
+      return false;
+    }
+
+    return matchesWildcard(s);
+  }
+
+  /**
+  * Walks the trie for the origin's scheme and port from the last host label to the first.
+  */
+  private boolean matchesWildcard(String s) {
+    int hostStart = hostStart(s);
+    int hostEnd = hostEnd(s, hostStart);
+
+    Node node = m_wildcards.get(s.substring(0, hostStart) + s.substring(hostEnd));
+
+    int end = hostEnd;
+    while (node != null && end > hostStart) {
+      int dot = s.lastIndexOf('.', end - 1);
+      if (dot < hostStart) {
+        // The whole host matched a pattern's suffix, but a wildcard needs one more label
+        return false;
+      }
+
+      node = node.children.get(s.substring(dot + 1, end));
+      if (node != null && node.matchSubdomains) {
+        return dot > hostStart;
+      }
+
+      end = dot;
+    }
+
+    return false;
+  }
+
+  /**
+  * Returns the index of the first character of the host, skipping any scheme.
+  */
+  private static int hostStart(String s) {
+    int i = s.indexOf("://");
+    return i == -1 ? 0 : i + 3;
+  }
+
+  /**
+  * Returns the index one past the last character of the host, excluding any port.
+  */
+  private static int hostEnd(String s, int hostStart) {
+    int from = hostStart;
+
+    if (s.startsWith("[", hostStart)) {
+      int bracket = s.indexOf(']', hostStart);
+      if (bracket != -1) {
+        from = bracket;
+      }
+    }
+
+    int colon = s.indexOf(':', from);
+    return colon == -1 ? s.length() : colon;
+  }
+}
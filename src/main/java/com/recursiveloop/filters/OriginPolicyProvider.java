@@ -0,0 +1,38 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.Map;
+
+
+/**
+* A source of allowed origins outside the filter's configuration, such as a tenant registry.
+*
+* Set cors.origin.provider to the name of an implementing class with a public no-argument
+* constructor. The filter caches answers per origin, refreshes them in the background before
+* they expire, and caches unknown origins negatively, so a provider is consulted far less often
+* than once per request. Lookups may block, and may be made from several threads at once.
+*/
+public interface OriginPolicyProvider {
+  /**
+  * Initialises the provider with the filter's cors.* parameters.
+  */
+  void init(Map<String, String> params) throws Exception;
+
+  /**
+  * Returns true if the origin is allowed. The origin is in canonical form: lower case, with an
+  * internationalised host in punycode and without a default port.
+  */
+  boolean isAllowed(String origin) throws Exception;
+
+  /**
+  * Releases any resources held by the provider.
+  */
+  void destroy();
+}
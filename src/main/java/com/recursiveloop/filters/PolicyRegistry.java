@@ -0,0 +1,178 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+* Shares compiled policies between filter instances with the same configuration.
+*
+* Policies are keyed by a SHA-256 fingerprint of their parameters, and of the modification
+* times of any origin indexes they name. The first filter to ask for a configuration compiles
+* it, later ones get the same immutable instance, and the policies are closed when the last
+* filter releases them. The registry is per class loader, so webapps only share policies if
+* the filter is loaded from the container's shared libraries.
+*/
+final class PolicyRegistry {
+  private final static Map<String, Entry> m_entries = new HashMap<String, Entry>();
+  private final static Map<PolicyRouter, String> m_fingerprints = new IdentityHashMap<PolicyRouter, String>();
+
+  private static final class Entry {
+    final PolicyRouter router;
+    int refs = 0;
+
+    Entry(PolicyRouter router) {
+      this.router = router;
+    }
+  }
+
+  private PolicyRegistry() {}
+
+  /**
+  * Returns the compiled policies for the parameters, compiling them if no other filter holds
+  * them. Each call must be matched by a call to release().
+  *
+  * Compiling can read large origin indexes or wait on an origin provider, so it is done without
+  * holding the registry's lock, and filters with other configurations can start meanwhile. If
+  * two filters compile the same configuration at once, the first to finish is kept and the
+  * other's policies are closed.
+  *
+  * @throws IllegalArgumentException if a parameter has an invalid value
+  * @throws IOException if an origin index cannot be read
+  */
+  static PolicyRouter acquire(Map<String, String> params) throws IOException {
+    String fingerprint = fingerprint(params);
+
+    PolicyRouter shared = share(fingerprint, null);
+    if (shared != null) {
+      return shared;
+    }
+
+    PolicyRouter router = PolicyRouter.compile(params);
+    shared = share(fingerprint, router);
+
+    if (shared != router) {
+      router.close();
+    }
+
+    return shared;
+  }
+
+  /**
+  * Takes a reference to the policies held for the fingerprint. If there are none, holds and
+  * returns the given policies instead, unless they are null.
+  */
+  private static synchronized PolicyRouter share(String fingerprint, PolicyRouter router) {
+    Entry entry = m_entries.get(fingerprint);
+    if (entry == null) {
+      if (router == null) {
+        return null;
+      }
+
+      entry = new Entry(router);
+      m_entries.put(fingerprint, entry);
+      m_fingerprints.put(router, fingerprint);
+    }
+
+    ++entry.refs;
+    return entry.router;
+  }
+
+  /**
+  * Releases policies obtained from acquire(), closing them if no other filter holds them.
+  * Policies that did not come from the registry are ignored.
+  */
+  static synchronized void release(PolicyRouter router) {
+    String fingerprint = m_fingerprints.get(router);
+    if (fingerprint == null) {
+      return;
+    }
+
+    Entry entry = m_entries.get(fingerprint);
+    if (--entry.refs == 0) {
+      m_entries.remove(fingerprint);
+      m_fingerprints.remove(router);
+      router.close();
+    }
+  }
+
+  /**
+  * Returns the number of distinct configurations currently held.
+  */
+  static synchronized int size() {
+    return m_entries.size();
+  }
+
+  /**
+  * Hashes the parameters that affect the compiled policies, in a canonical order.
+  */
+  static String fingerprint(Map<String, String> params) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(ex);
+    }
+
+    for (Map.Entry<String, String> param : new TreeMap<String, String>(params).entrySet()) {
+      String name = param.getKey();
+      if (!affectsPolicy(name)) {
+        continue;
+      }
+
+      update(digest, name);
+      update(digest, param.getValue());
+
+      // An index can be rebuilt in place, so its contents are identified by when it changed
+      if (name.endsWith(".index")) {
+        Path index = Paths.get(param.getValue());
+        update(digest, Files.exists(index) ? Files.getLastModifiedTime(index).toString() : "");
+      }
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+
+    return hex.toString();
+  }
+
+  /**
+  * Returns false for parameters that configure the filter rather than its policies.
+  */
+  private static boolean affectsPolicy(String name) {
+    return !name.equals("cors.config.file") && !name.equals("cors.jmx.enabled")
+      && !name.startsWith("cors.trace.");
+  }
+
+  /**
+  * Adds a length-prefixed string to the digest, so adjacent strings can't run together.
+  */
+  private static void update(MessageDigest digest, String s) {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    digest.update((byte)(bytes.length >>> 24));
+    digest.update((byte)(bytes.length >>> 16));
+    digest.update((byte)(bytes.length >>> 8));
+    digest.update((byte)bytes.length);
+    digest.update(bytes);
+  }
+}
@@ -0,0 +1,302 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+* Selects the policy for a request by its path.
+*
+* Named policies are listed in cors.policies. Each takes the global cors.* parameters,
+* overridden by its own cors.policy.&lt;name&gt;.* parameters, and applies to the path patterns
+* in cors.policy.&lt;name&gt;.paths. The patterns are compiled into a trie of path segments, so
+* selecting a policy costs roughly the depth of the path rather than the number of routes.
+* Requests that match no pattern get the global policy.
+*/
+final class PolicyRouter {
+  private final CorsPolicy m_default;
+  private final Node m_root;
+  private final List<CorsPolicy> m_policies;
+  private final Map<Map<String, String>, CachingOriginProvider> m_providers;
+
+  /**
+  * A trie node for one path segment.
+  *
+  * Children are added to a map while the patterns are inserted, then copied into an open
+  * addressing table keyed by the segment's String hash, so a lookup can hash and compare a
+  * region of the path without taking a substring.
+  */
+  private static final class Node {
+    final Map<String, Node> children = new HashMap<String, Node>();
+    Node wildcard = null;
+    CorsPolicy policy = null;
+    String policyName = null;
+
+    String[] keys = null;
+    Node[] nodes = null;
+
+    /**
+    * Builds the lookup tables of this node and those beneath it.
+    */
+    void seal() {
+      if (!children.isEmpty()) {
+        int capacity = 2;
+        while (capacity < children.size() * 2) {
+          capacity <<= 1;
+        }
+
+        keys = new String[capacity];
+        nodes = new Node[capacity];
+
+        for (Map.Entry<String, Node> child : children.entrySet()) {
+          int slot = child.getKey().hashCode() & (capacity - 1);
+          while (keys[slot] != null) {
+            slot = (slot + 1) & (capacity - 1);
+          }
+
+          keys[slot] = child.getKey();
+          nodes[slot] = child.getValue();
+          child.getValue().seal();
+        }
+      }
+
+      if (wildcard != null) {
+        wildcard.seal();
+      }
+    }
+
+    /**
+    * Returns the child for s[start, end), whose String hash is given, or null.
+    */
+    Node child(String s, int start, int end, int hash) {
+      if (keys == null) {
+        return null;
+      }
+
+      int mask = keys.length - 1;
+      int len = end - start;
+
+      String key;
+      for (int slot = hash & mask; (key = keys[slot]) != null; slot = (slot + 1) & mask) {
+        if (key.length() == len && s.regionMatches(start, key, 0, len)) {
+          return nodes[slot];
+        }
+      }
+
+      return null;
+    }
+  }
+
+  private PolicyRouter(CorsPolicy defaultPolicy, Node root, List<CorsPolicy> policies,
+    Map<Map<String, String>, CachingOriginProvider> providers) {
+
+    m_default = defaultPolicy;
+    m_root = root;
+    m_policies = Collections.unmodifiableList(policies);
+    m_providers = providers;
+  }
+
+  /**
+  * Compiles the global policy and any named policies.
+  *
+  * A path pattern matches the path it names and everything beneath it, so /api matches /api
+  * and /api/users but not /apis. A * segment matches any one segment. Where several patterns
+  * match, the one with the most leading literal segments wins.
+  *
+  * @throws IllegalArgumentException if a parameter has an invalid value, or two policies claim
+  *   the same pattern
+  * @throws IOException if an origin index cannot be read
+  */
+  static PolicyRouter compile(Map<String, String> params) throws IOException {
+    List<CorsPolicy> policies = new ArrayList<CorsPolicy>();
+    Map<Map<String, String>, CachingOriginProvider> providers =
+      new HashMap<Map<String, String>, CachingOriginProvider>();
+
+    try {
+      CorsPolicy defaultPolicy = CorsPolicy.compile(params, providers);
+      policies.add(defaultPolicy);
+
+      String names = params.get("cors.policies");
+      if (names == null || names.trim().isEmpty()) {
+        return new PolicyRouter(defaultPolicy, null, policies, providers);
+      }
+
+      Node root = new Node();
+
+      for (String name : names.split(",")) {
+        name = name.trim();
+        if (name.isEmpty()) {
+          continue;
+        }
+
+        String paths = params.get("cors.policy." + name + ".paths");
+        if (paths == null) {
+          throw new IllegalArgumentException("cors.policy." + name + ".paths is not set");
+        }
+
+        CorsPolicy policy = CorsPolicy.compile(paramsFor(params, name), providers);
+        policies.add(policy);
+
+        for (String pattern : paths.split(",")) {
+          if (!pattern.trim().isEmpty()) {
+            insert(root, pattern.trim(), name, policy);
+          }
+        }
+      }
+
+      root.seal();
+      return new PolicyRouter(defaultPolicy, root, policies, providers);
+    } catch (IOException | RuntimeException ex) {
+      // Providers created before the failure may have started threads
+      close(providers);
+
+      throw ex;
+    }
+  }
+
+  /**
+  * Returns the policy for a normalised request path within the application.
+  */
+  CorsPolicy select(String path) {
+    if (m_root == null || path == null) {
+      return m_default;
+    }
+
+    CorsPolicy policy = find(m_root, path, 0);
+
+    return policy == null ? m_default : policy;
+  }
+
+  /**
+  * Returns every policy, starting with the global one.
+  */
+  List<CorsPolicy> policies() {
+    return m_policies;
+  }
+
+  /**
+  * Releases the policies' resources, such as origin providers' threads. Requests that are still
+  * using the policies continue to be answered, but background refreshes stop.
+  */
+  void close() {
+    close(m_providers);
+  }
+
+  private static void close(Map<Map<String, String>, CachingOriginProvider> providers) {
+    for (CachingOriginProvider provider : providers.values()) {
+      if (provider != null) {
+        provider.close();
+      }
+    }
+  }
+
+  /**
+  * Returns the most specific policy beneath the node for path[start...], or null.
+  */
+  private static CorsPolicy find(Node node, String path, int start) {
+    int n = path.length();
+
+    // Skip separators, so /a//b is treated as /a/b
+    while (start < n && path.charAt(start) == '/') {
+      ++start;
+    }
+
+    // Hash the segment as it is scanned, the same way as String.hashCode()
+    int end = start;
+    int hash = 0;
+    char c;
+    while (end < n && (c = path.charAt(end)) != '/') {
+      hash = 31 * hash + c;
+      ++end;
+    }
+
+    if (end > start && (node.keys != null || node.wildcard != null)) {
+      Node child = node.child(path, start, end, hash);
+      if (child != null) {
+        CorsPolicy policy = find(child, path, end);
+        if (policy != null) {
+          return policy;
+        }
+      }
+
+      if (node.wildcard != null) {
+        CorsPolicy policy = find(node.wildcard, path, end);
+        if (policy != null) {
+          return policy;
+        }
+      }
+    }
+
+    return node.policy;
+  }
+
+  private static void insert(Node root, String pattern, String name, CorsPolicy policy) {
+    Node node = root;
+
+    for (String segment : pattern.split("/")) {
+      if (segment.isEmpty()) {
+        continue;
+      }
+
+      if (segment.equals("*")) {
+        if (node.wildcard == null) {
+          node.wildcard = new Node();
+        }
+
+        node = node.wildcard;
+      } else {
+        Node child = node.children.get(segment);
+        if (child == null) {
+          child = new Node();
+          node.children.put(segment, child);
+        }
+
+        node = child;
+      }
+    }
+
+    if (node.policy != null && !node.policyName.equals(name)) {
+      throw new IllegalArgumentException("Path " + pattern + " is claimed by policies "
+        + node.policyName + " and " + name);
+    }
+
+    node.policy = policy;
+    node.policyName = name;
+  }
+
+  /**
+  * Returns the global parameters overridden by the named policy's own, with the
+  * cors.policy.&lt;name&gt; prefix replaced by cors.
+  */
+  private static Map<String, String> paramsFor(Map<String, String> params, String name) {
+    String prefix = "cors.policy." + name + ".";
+    Map<String, String> result = new HashMap<String, String>();
+
+    for (Map.Entry<String, String> entry : params.entrySet()) {
+      if (!entry.getKey().startsWith("cors.policy.")) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    for (Map.Entry<String, String> entry : params.entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        result.put("cors." + entry.getKey().substring(prefix.length()), entry.getValue());
+      }
+    }
+
+    result.remove("cors.paths");
+    return result;
+  }
+}
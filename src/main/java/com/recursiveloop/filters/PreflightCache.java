@@ -0,0 +1,149 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+* A bounded, concurrent cache of preflight verdicts, keyed on the origin, requested method and
+* normalised requested headers.
+*
+* When the cache is full an entry is evicted by sampling a few entries and removing the oldest.
+*/
+final class PreflightCache {
+  private static final int EVICTION_SAMPLE = 8;
+
+  private final ConcurrentHashMap<String, Entry> m_entries;
+  private final int m_maxSize;
+  private final long m_ttlNanos;
+  private final LongAdder m_hits = new LongAdder();
+  private final LongAdder m_misses = new LongAdder();
+
+  private static final class Entry {
+    final PreflightVerdict verdict;
+    final long created;
+
+    Entry(PreflightVerdict verdict, long created) {
+      this.verdict = verdict;
+      this.created = created;
+    }
+  }
+
+  /**
+  * Creates a cache holding at most maxSize entries, each living for ttlSeconds. A ttlSeconds of
+  * zero or less means entries never expire.
+  */
+  PreflightCache(int maxSize, long ttlSeconds) {
+    m_entries = new ConcurrentHashMap<String, Entry>(Math.min(maxSize, 1024) * 2);
+    m_maxSize = maxSize;
+    m_ttlNanos = ttlSeconds > 0 ? TimeUnit.SECONDS.toNanos(ttlSeconds) : 0;
+  }
+
+  /**
+  * Builds the cache key for a preflight. Requested header names are lower-cased and stripped of
+  * whitespace, so trivially different spellings of the same request share an entry.
+  */
+  static String key(String origin, String method, String requestHeaders) {
+    int headersLength = requestHeaders == null ? 0 : requestHeaders.length();
+    StringBuilder sb = new StringBuilder(origin.length() + method.length() + headersLength + 2);
+
+    sb.append(origin).append('\n').append(method).append('\n');
+
+    for (int i = 0; i < headersLength; ++i) {
+      char c = requestHeaders.charAt(i);
+      if (c == ' ' || c == '\t') {
+        continue;
+      }
+
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      }
+
+      sb.append(c);
+    }
+
+    return sb.toString();
+  }
+
+  /**
+  * Returns the cached verdict, or null on a miss.
+  */
+  PreflightVerdict get(String key) {
+    Entry entry = m_entries.get(key);
+
+    if (entry != null && m_ttlNanos != 0 && System.nanoTime() - entry.created >= m_ttlNanos) {
+      m_entries.remove(key, entry);
+      entry = null;
+    }
+
+    if (entry == null) {
+      m_misses.increment();
+      return null;
+    }
+
+    m_hits.increment();
+    return entry.verdict;
+  }
+
+  /**
+  * Caches a verdict, evicting an older entry if the cache is full.
+  */
+  void put(String key, PreflightVerdict verdict) {
+    if (m_entries.size() >= m_maxSize) {
+      evict();
+    }
+
+    m_entries.put(key, new Entry(verdict, System.nanoTime()));
+  }
+
+  /**
+  * Returns the number of lookups that found a live entry.
+  */
+  long hits() {
+    return m_hits.sum();
+  }
+
+  /**
+  * Returns the number of lookups that found no live entry.
+  */
+  long misses() {
+    return m_misses.sum();
+  }
+
+  /**
+  * Returns the current number of entries.
+  */
+  int size() {
+    return m_entries.size();
+  }
+
+  /**
+  * Removes the oldest of a small sample of entries.
+  */
+  private void evict() {
+    Iterator<Map.Entry<String, Entry>> it = m_entries.entrySet().iterator();
+
+    Map.Entry<String, Entry> oldest = null;
+    for (int i = 0; i < EVICTION_SAMPLE && it.hasNext(); ++i) {
+      Map.Entry<String, Entry> candidate = it.next();
+      if (oldest == null || candidate.getValue().created - oldest.getValue().created < 0) {
+        oldest = candidate;
+      }
+    }
+
+    if (oldest != null) {
+      m_entries.remove(oldest.getKey(), oldest.getValue());
+    }
+  }
+}
@@ -0,0 +1,154 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+* Limits the rate of preflight requests from each origin.
+*
+* Each origin has a token bucket, kept as a single theoretical arrival time in an AtomicLong
+* (the generic cell rate algorithm), so taking a token is one compare-and-set. At most a fixed
+* number of origins get their own bucket. Buckets that have refilled completely carry no state
+* worth keeping and are evicted to make room, and origins beyond the limit share a fixed set of
+* buckets chosen by hash. A flood of made-up origins therefore costs bounded memory, and only
+* throttles the other origins that land in the same shared buckets.
+*/
+final class PreflightRateLimiter {
+  private static final int STRIPES = 64;
+  private static final int EVICTION_SCAN = 16;
+
+  private final long m_intervalNanos;
+  private final long m_burstNanos;
+  private final int m_maxOrigins;
+  private final String m_retryAfter;
+  private final ConcurrentHashMap<String, AtomicLong> m_buckets = new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong[] m_stripes = new AtomicLong[STRIPES];
+
+  /**
+  * Allows each origin ratePerSecond preflights a second on average, and up to burst at once.
+  */
+  PreflightRateLimiter(double ratePerSecond, int burst, int maxOrigins) {
+    if (ratePerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("The preflight rate limit and burst must be positive");
+    }
+
+    m_intervalNanos = Math.max(1, (long)(TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+    m_burstNanos = m_intervalNanos * burst;
+    m_maxOrigins = maxOrigins;
+
+    long second = TimeUnit.SECONDS.toNanos(1);
+    m_retryAfter = Long.toString(Math.max(1, (m_intervalNanos + second - 1) / second));
+
+    long now = System.nanoTime();
+    for (int i = 0; i < STRIPES; ++i) {
+      m_stripes[i] = new AtomicLong(now);
+    }
+  }
+
+  /**
+  * Creates a limiter from cors.preflight.rate.limit, cors.preflight.rate.burst and
+  * cors.preflight.rate.origins. Returns null if no limit is set.
+  *
+  * @throws IllegalArgumentException if a parameter has an invalid value
+  */
+  static PreflightRateLimiter fromParams(Map<String, String> params) {
+    String limit = params.get("cors.preflight.rate.limit");
+    if (limit == null || limit.trim().isEmpty()) {
+      return null;
+    }
+
+    double rate;
+    try {
+      rate = Double.parseDouble(limit.trim());
+    } catch (NumberFormatException ex) {
+      throw new IllegalArgumentException("Invalid value for cors.preflight.rate.limit: " + limit, ex);
+    }
+
+    int burst = CorsPolicy.getInt(params, "cors.preflight.rate.burst", (int)Math.max(1, Math.ceil(rate)));
+    int maxOrigins = CorsPolicy.getInt(params, "cors.preflight.rate.origins", 10000);
+
+    return new PreflightRateLimiter(rate, burst, maxOrigins);
+  }
+
+  /**
+  * Takes a token from the origin's bucket. Returns false if the bucket is empty. The origin must
+  * be in canonical form, so that every spelling of it shares one bucket.
+  */
+  boolean tryAcquire(String origin) {
+    long now = System.nanoTime();
+    AtomicLong bucket = bucket(origin, now);
+
+    while (true) {
+      long tat = bucket.get();
+      long next = (tat - now < 0 ? now : tat) + m_intervalNanos;
+
+      if (next - now > m_burstNanos) {
+        return false;
+      }
+
+      if (bucket.compareAndSet(tat, next)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+  * Returns the Retry-After value for a rejected preflight: the seconds until a token is added.
+  */
+  String retryAfter() {
+    return m_retryAfter;
+  }
+
+  /**
+  * Returns the number of origins with their own bucket.
+  */
+  int size() {
+    return m_buckets.size();
+  }
+
+  private AtomicLong bucket(String key, long now) {
+    AtomicLong bucket = m_buckets.get(key);
+    if (bucket != null) {
+      return bucket;
+    }
+
+    if (m_buckets.size() >= m_maxOrigins) {
+      evictIdle(now);
+    }
+
+    if (m_buckets.size() < m_maxOrigins) {
+      AtomicLong created = new AtomicLong(now);
+      bucket = m_buckets.putIfAbsent(key, created);
+      return bucket == null ? created : bucket;
+    }
+
+    int h = key.hashCode() * 0x9E3779B9;
+    return m_stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+
+  /**
+  * Removes some of the buckets that have refilled completely, which behave like new ones.
+  */
+  private void evictIdle(long now) {
+    Iterator<Map.Entry<String, AtomicLong>> it = m_buckets.entrySet().iterator();
+
+    for (int i = 0; i < EVICTION_SCAN && it.hasNext(); ++i) {
+      Map.Entry<String, AtomicLong> entry = it.next();
+      if (entry.getValue().get() - now <= 0) {
+        m_buckets.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
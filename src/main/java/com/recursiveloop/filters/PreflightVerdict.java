@@ -0,0 +1,41 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+
+/**
+* The outcome of evaluating a preflight request, with the headers to send if it was allowed.
+*/
+final class PreflightVerdict {
+  static final PreflightVerdict ORIGIN_REJECTED =
+    new PreflightVerdict(CorsOutcome.ORIGIN_REJECTED, null);
+
+  /**
+  * Rejects an origin the origin provider couldn't answer for. It is never cached, so the origin
+  * is asked about again on the next preflight.
+  */
+  static final PreflightVerdict ORIGIN_UNKNOWN =
+    new PreflightVerdict(CorsOutcome.ORIGIN_REJECTED, null);
+
+  static final PreflightVerdict METHOD_REJECTED =
+    new PreflightVerdict(CorsOutcome.METHOD_REJECTED, null);
+
+  static final PreflightVerdict HEADERS_REJECTED =
+    new PreflightVerdict(CorsOutcome.HEADERS_REJECTED, null);
+
+  final CorsOutcome outcome;
+  final boolean allowed;
+  final HeaderPlan headers;
+
+  PreflightVerdict(CorsOutcome outcome, HeaderPlan headers) {
+    this.outcome = outcome;
+    this.allowed = outcome == CorsOutcome.PREFLIGHT_APPROVED;
+    this.headers = headers;
+  }
+}
@@ -0,0 +1,185 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+* Works out the path a request is routed by, for CorsRequest.getPath().
+*
+* Servlet adapters join the servlet path and path info. Adapters for servers that don't route
+* requests themselves, such as Netty, normalise the raw request target. Policies and exemptions
+* are chosen by path prefix, so a path that still contained ".." segments, path parameters or
+* escapes could select a different policy from the code that finally handles the request.
+*/
+public final class RequestPath {
+  private RequestPath() {}
+
+  /**
+  * Returns the normalised path of a request target, or null if it has none or can't be decoded.
+  *
+  * The query and fragment are dropped, as is the scheme and authority of an absolute target.
+  * Path parameters such as ;jsessionid=... are removed from each segment, escapes are decoded
+  * as UTF-8, empty and . segments are dropped and .. removes the segment before it. An escaped
+  * / or \ makes the path undecodable, as most containers reject it. A trailing / is kept. A
+  * target that needs none of this is returned without copying.
+  */
+  public static String normalize(String target) {
+    if (target == null) {
+      return null;
+    }
+
+    int n = target.length();
+    int end = 0;
+    while (end < n && target.charAt(end) != '?' && target.charAt(end) != '#') {
+      ++end;
+    }
+
+    int start = 0;
+    if (end == 0 || target.charAt(0) != '/') {
+      int scheme = target.indexOf("://");
+      if (scheme == -1 || scheme >= end) {
+        return null;
+      }
+
+      start = target.indexOf('/', scheme + 3);
+      if (start == -1 || start >= end) {
+        return "/";
+      }
+    }
+
+    if (isNormal(target, start, end)) {
+      return start == 0 && end == n ? target : target.substring(start, end);
+    }
+
+    StringBuilder path = new StringBuilder(end - start);
+    boolean trailing = false;
+    int i = start;
+
+    while (i < end) {
+      if (target.charAt(i) == '/') {
+        ++i;
+        continue;
+      }
+
+      int segmentEnd = i;
+      int paramStart = -1;
+      while (segmentEnd < end && target.charAt(segmentEnd) != '/') {
+        if (paramStart == -1 && target.charAt(segmentEnd) == ';') {
+          paramStart = segmentEnd;
+        }
+
+        ++segmentEnd;
+      }
+
+      String segment = decode(target, i, paramStart == -1 ? segmentEnd : paramStart);
+      if (segment == null) {
+        return null;
+      }
+
+      i = segmentEnd;
+
+      if (segment.equals("..")) {
+        int slash = path.lastIndexOf("/");
+        path.setLength(slash == -1 ? 0 : slash);
+        trailing = true;
+      } else if (segment.isEmpty() || segment.equals(".")) {
+        trailing = true;
+      } else {
+        path.append('/').append(segment);
+        trailing = segmentEnd < end;
+      }
+    }
+
+    if (path.length() == 0 || trailing) {
+      path.append('/');
+    }
+
+    return path.toString();
+  }
+
+  /**
+  * Returns the path a servlet request is dispatched by: its servlet path followed by its path
+  * info, either of which may be null. The container has already decoded and normalised both.
+  */
+  public static String ofServlet(String servletPath, String pathInfo) {
+    if (servletPath == null || servletPath.isEmpty()) {
+      return pathInfo;
+    }
+
+    return pathInfo == null ? servletPath : servletPath + pathInfo;
+  }
+
+  /**
+  * Returns true if target[start, end) has no escapes, path parameters, empty segments or dot
+  * segments.
+  */
+  private static boolean isNormal(String target, int start, int end) {
+    for (int i = start; i < end; ++i) {
+      char c = target.charAt(i);
+      if (c == '%' || c == ';') {
+        return false;
+      }
+
+      if (c == '/' && i + 1 < end) {
+        char next = target.charAt(i + 1);
+        if (next == '/') {
+          return false;
+        }
+
+        if (next == '.' && (i + 2 == end || target.charAt(i + 2) == '/'
+          || (target.charAt(i + 2) == '.' && (i + 3 == end || target.charAt(i + 3) == '/')))) {
+          return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+  * Decodes the escapes in s[start, end), or returns null if one is malformed or decodes to a
+  * separator.
+  */
+  private static String decode(String s, int start, int end) {
+    int escape = s.indexOf('%', start);
+    if (escape == -1 || escape >= end) {
+      return s.substring(start, end);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(end - start);
+    for (int i = start; i < end; ++i) {
+      char c = s.charAt(i);
+      if (c != '%') {
+        // Unescaped characters are written as UTF-8 too, so they decode back unchanged
+        byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+        bytes.write(encoded, 0, encoded.length);
+        continue;
+      }
+
+      int hi = i + 2 < end ? Character.digit(s.charAt(i + 1), 16) : -1;
+      int lo = i + 2 < end ? Character.digit(s.charAt(i + 2), 16) : -1;
+      if (hi == -1 || lo == -1) {
+        return null;
+      }
+
+      int b = (hi << 4) | lo;
+      if (b == '/' || b == '\\') {
+        return null;
+      }
+
+      bytes.write(b);
+      i += 2;
+    }
+
+    return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,196 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.Locale;
+
+
+/**
+* An immutable, ASCII case-insensitive hash table of tokens such as header names or methods.
+*
+* Lookups take a region of a string, so tokens can be tested straight out of a
+* comma-separated header value without creating substrings or case-folded copies.
+*/
+final class TokenSet {
+  private final String[] m_keys;
+  private final int[] m_ids;
+  private final int m_mask;
+  private final int m_size;
+
+  /**
+  * Builds the table. Each token's id is its index in the given array. Blank tokens are ignored.
+  */
+  TokenSet(String[] tokens) {
+    int capacity = 4;
+    while (capacity < tokens.length * 2) {
+      capacity <<= 1;
+    }
+
+    m_keys = new String[capacity];
+    m_ids = new int[capacity];
+    m_mask = capacity - 1;
+
+    int size = 0;
+    for (int i = 0; i < tokens.length; ++i) {
+      String token = tokens[i].trim().toLowerCase(Locale.ENGLISH);
+      if (token.isEmpty() || indexOf(token, 0, token.length()) != -1) {
+        continue;
+      }
+
+      int slot = spread(hash(token, 0, token.length())) & m_mask;
+      while (m_keys[slot] != null) {
+        slot = (slot + 1) & m_mask;
+      }
+
+      m_keys[slot] = token;
+      m_ids[slot] = i;
+      ++size;
+    }
+
+    m_size = size;
+  }
+
+  /**
+  * Splits a comma-separated list and builds the table from its items.
+  */
+  static TokenSet parse(String list) {
+    return new TokenSet(list.split(","));
+  }
+
+  /**
+  * Returns the number of distinct tokens.
+  */
+  int size() {
+    return m_size;
+  }
+
+  /**
+  * Returns true if s[start, end) is in the set.
+  */
+  boolean contains(String s, int start, int end) {
+    return indexOf(s, start, end) != -1;
+  }
+
+  /**
+  * Returns true if s is in the set.
+  */
+  boolean contains(String s) {
+    return indexOf(s, 0, s.length()) != -1;
+  }
+
+  /**
+  * Returns the id of s[start, end), or -1 if it is not in the set.
+  */
+  int indexOf(String s, int start, int end) {
+    return indexOf(s, start, end, hash(s, start, end));
+  }
+
+  /**
+  * Returns the id of s[start, end), whose hash has already been computed, or -1.
+  */
+  private int indexOf(String s, int start, int end, int hash) {
+    int len = end - start;
+    int slot = spread(hash) & m_mask;
+
+    String key;
+    while ((key = m_keys[slot]) != null) {
+      if (key.length() == len && equalsFolded(key, s, start)) {
+        return m_ids[slot];
+      }
+
+      slot = (slot + 1) & m_mask;
+    }
+
+    return -1;
+  }
+
+  /**
+  * Returns true if every token in the comma-separated list is in the set. Optional whitespace
+  * around items and empty items are ignored.
+  */
+  boolean containsAll(String list) {
+    int n = list.length();
+    int i = 0;
+
+    while (i < n) {
+      char c = list.charAt(i);
+      if (c == ',' || c == ' ' || c == '\t') {
+        ++i;
+        continue;
+      }
+
+      // Hash the token as it is scanned, so each character is read once before the lookup
+      int start = i;
+      int end = i;
+      int h = 0;
+      int hEnd = 0;
+      while (i < n && (c = list.charAt(i)) != ',') {
+        ++i;
+        h = step(h, c);
+        if (c != ' ' && c != '\t') {
+          end = i;
+          hEnd = h;
+        }
+      }
+
+      if (indexOf(list, start, end, hEnd) == -1) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+  * Compares a lower-case key with s[start, start + key.length()), folding ASCII upper case.
+  */
+  private static boolean equalsFolded(String key, String s, int start) {
+    for (int i = 0; i < key.length(); ++i) {
+      char a = key.charAt(i);
+      char b = s.charAt(start + i);
+
+      if (a != b && (b < 'A' || b > 'Z' || a != b + ('a' - 'A'))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+  * A case-insensitive hash over ASCII letters.
+  */
+  private static int hash(String s, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; ++i) {
+      h = step(h, s.charAt(i));
+    }
+
+    return h;
+  }
+
+  /**
+  * Folds one character into a running hash.
+  */
+  private static int step(int h, char c) {
+    if (c >= 'A' && c <= 'Z') {
+      c += 'a' - 'A';
+    }
+
+    return 31 * h + c;
+  }
+
+  /**
+  * Spreads the bits of a hash, since header names often differ only in their last character.
+  */
+  private static int spread(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
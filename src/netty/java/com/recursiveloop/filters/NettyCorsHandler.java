@@ -0,0 +1,226 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+
+/**
+* Applies a CorsEngine to the HTTP requests on a Netty channel.
+*
+* Place it after the HttpServerCodec. Requests the engine lets through are passed on, and the
+* CORS headers it chose are added to the matching response as it is written. Requests it stops,
+* such as terminated preflights, are answered here and never reach the next handler. Their
+* answers wait behind the responses to any earlier pipelined requests, so responses go out in
+* request order. The handler keeps per-channel state, so create one per channel around a shared,
+* initialised engine.
+*/
+public class NettyCorsHandler extends ChannelDuplexHandler {
+  private final CorsEngine m_engine;
+  private final ArrayDeque<Exchange> m_pending = new ArrayDeque<Exchange>();
+  private boolean m_discarding = false;
+  private boolean m_writingBody = false;
+
+  /**
+  * Reads headers from a Netty request as the engine asks for them, and holds the response
+  * headers it sets until the response is written. A request the engine stops also holds the
+  * response that answers it, until the responses to earlier requests have been written.
+  */
+  private static final class Exchange implements CorsRequest, CorsResponse {
+    private final HttpRequest m_request;
+    private HttpHeaders m_headers = null;
+    private int m_status = 0;
+    private String m_path = null;
+    private FullHttpResponse m_response = null;
+    private boolean m_keepAlive = false;
+
+    Exchange(HttpRequest request) {
+      m_request = request;
+    }
+
+    @Override
+    public String getMethod() {
+      return m_request.method().name();
+    }
+
+    @Override
+    public String getHeader(String name) {
+      return m_request.headers().get(name);
+    }
+
+    @Override
+    public String getPath() {
+      // The engine asks for the path once to choose a policy and again for an exemption
+      if (m_path == null) {
+        m_path = RequestPath.normalize(m_request.uri());
+      }
+
+      return m_path;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      if (m_headers == null) {
+        m_headers = new DefaultHttpHeaders();
+      }
+
+      m_headers.set(name, value);
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+      // Nothing has been written yet; Vary is merged with the application's in copyTo
+      return Collections.emptyList();
+    }
+
+    @Override
+    public void setStatus(int status) {
+      m_status = status;
+    }
+
+    /**
+    * Adds the held headers to a response, merging Vary with any value it already has.
+    */
+    void copyTo(HttpHeaders headers) {
+      if (m_headers == null) {
+        return;
+      }
+
+      for (Map.Entry<String, String> header : m_headers) {
+        if (header.getKey().equalsIgnoreCase("Vary")) {
+          String vary = CorsEngine.varyWithOrigin(headers.getAll(HttpHeaderNames.VARY));
+          if (vary != null) {
+            headers.set(HttpHeaderNames.VARY, vary);
+          }
+        } else {
+          headers.set(header.getKey(), header.getValue());
+        }
+      }
+    }
+
+    /**
+    * Builds the empty response that answers a stopped request.
+    */
+    void answer() {
+      m_response = new DefaultFullHttpResponse(m_request.protocolVersion(),
+        HttpResponseStatus.valueOf(m_status));
+
+      copyTo(m_response.headers());
+      HttpUtil.setContentLength(m_response, 0);
+
+      m_keepAlive = HttpUtil.isKeepAlive(m_request);
+      HttpUtil.setKeepAlive(m_response, m_keepAlive);
+    }
+  }
+
+  /**
+  * Creates a handler for one channel. The engine must already be initialised.
+  */
+  public NettyCorsHandler(CorsEngine engine) {
+    m_engine = engine;
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+    if (msg instanceof HttpRequest) {
+      HttpRequest request = (HttpRequest)msg;
+      Exchange exchange = new Exchange(request);
+
+      if (m_engine.apply(exchange, exchange)) {
+        m_pending.add(exchange);
+        ctx.fireChannelRead(msg);
+      } else {
+        exchange.answer();
+
+        // Drop the body of a request that is answered here
+        m_discarding = !(msg instanceof LastHttpContent);
+        ReferenceCountUtil.release(msg);
+
+        // Pipelined responses must go out in request order, so wait for any earlier ones
+        if (m_pending.isEmpty() && !m_writingBody) {
+          send(ctx, exchange);
+          ctx.flush();
+        } else {
+          m_pending.add(exchange);
+        }
+      }
+    } else if (m_discarding && msg instanceof HttpContent) {
+      m_discarding = !(msg instanceof LastHttpContent);
+      ReferenceCountUtil.release(msg);
+    } else {
+      ctx.fireChannelRead(msg);
+    }
+  }
+
+  @Override
+  public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+    // Informational responses such as 100 Continue come before the real one
+    if (msg instanceof HttpResponse && ((HttpResponse)msg).status().code() >= 200) {
+      Exchange exchange = m_pending.peek();
+      if (exchange != null && exchange.m_response == null) {
+        m_pending.poll();
+        exchange.copyTo(((HttpResponse)msg).headers());
+      }
+
+      m_writingBody = true;
+    }
+
+    ctx.write(msg, promise);
+
+    // Once a response is complete, answer the stopped requests that were waiting for it. The
+    // application flushes after its write, which sends these too.
+    if (m_writingBody && msg instanceof LastHttpContent) {
+      m_writingBody = false;
+
+      Exchange exchange;
+      while ((exchange = m_pending.peek()) != null && exchange.m_response != null) {
+        m_pending.poll();
+        send(ctx, exchange);
+      }
+    }
+  }
+
+  @Override
+  public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+    for (Exchange exchange : m_pending) {
+      ReferenceCountUtil.release(exchange.m_response);
+    }
+
+    m_pending.clear();
+  }
+
+  private static void send(ChannelHandlerContext ctx, Exchange exchange) {
+    ChannelFuture future = ctx.write(exchange.m_response);
+    exchange.m_response = null;
+
+    if (!exchange.m_keepAlive) {
+      future.addListener(ChannelFutureListener.CLOSE);
+    }
+  }
+}
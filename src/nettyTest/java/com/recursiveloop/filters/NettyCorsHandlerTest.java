@@ -0,0 +1,238 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.Assert;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+* Verifies that com.recursiveloop.filters.NettyCorsHandler applies the engine's decisions to a
+* Netty channel.
+*/
+public class NettyCorsHandlerTest {
+  private CorsEngine m_engine;
+  private EmbeddedChannel m_channel;
+
+  @Before
+  public void before() throws IOException {
+    start();
+  }
+
+  /**
+  * Starts the engine and channel, with parameters given as alternating names and values added
+  * to the defaults.
+  */
+  private void start(String... namesAndValues) throws IOException {
+    if (m_engine != null) {
+      after();
+    }
+
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("cors.allowed.origins", "http://www.example.com");
+    params.put("cors.preflight.terminate", "true");
+    params.put("cors.jmx.enabled", "false");
+
+    for (int i = 0; i + 1 < namesAndValues.length; i += 2) {
+      params.put(namesAndValues[i], namesAndValues[i + 1]);
+    }
+
+    m_engine = new CorsEngine();
+    m_engine.init(params, "", "netty");
+    m_channel = new EmbeddedChannel(new NettyCorsHandler(m_engine));
+  }
+
+  @Test
+  public void actualRequestHeadersAreAddedToTheResponse() {
+    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/api?x=1");
+    request.headers().set("Origin", "http://www.example.com");
+
+    m_channel.writeInbound(request);
+    HttpRequest passed = m_channel.readInbound();
+    Assert.assertSame(request, passed);
+    request.release();
+
+    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    response.headers().set("Vary", "Accept-Encoding");
+    m_channel.writeOutbound(response);
+
+    FullHttpResponse written = m_channel.readOutbound();
+    Assert.assertEquals("http://www.example.com", written.headers().get("Access-Control-Allow-Origin"));
+    Assert.assertEquals("Accept-Encoding, Origin", written.headers().get("Vary"));
+    written.release();
+  }
+
+  @Test
+  public void terminatedPreflightIsAnsweredByTheHandler() {
+    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.OPTIONS, "/api");
+    request.headers().set("Origin", "http://www.example.com");
+    request.headers().set("Access-Control-Request-Method", "PUT");
+
+    m_channel.writeInbound(request);
+    Assert.assertNull(m_channel.readInbound());
+    Assert.assertEquals(0, request.refCnt());
+
+    FullHttpResponse written = m_channel.readOutbound();
+    Assert.assertEquals(HttpResponseStatus.NO_CONTENT, written.status());
+    Assert.assertEquals("http://www.example.com", written.headers().get("Access-Control-Allow-Origin"));
+    Assert.assertEquals("1000", written.headers().get("Access-Control-Max-Age"));
+    written.release();
+  }
+
+  @Test
+  public void rejectedActualRequestIsForbidden() throws IOException {
+    start("cors.enforce.actual", "true", "cors.enforce.exempt.paths", "/public");
+
+    // The raw target starts with the exempt prefix, but the path it names doesn't
+    FullHttpRequest request = get("/public/../admin", "http://evil.example.com");
+    m_channel.writeInbound(request);
+    Assert.assertNull(m_channel.readInbound());
+
+    FullHttpResponse written = m_channel.readOutbound();
+    Assert.assertEquals(HttpResponseStatus.FORBIDDEN, written.status());
+    Assert.assertEquals("0", written.headers().get("Content-Length"));
+    Assert.assertNull(written.headers().get("Access-Control-Allow-Origin"));
+    written.release();
+
+    // An exempt path is passed on
+    request = get("/public/status", "http://evil.example.com");
+    m_channel.writeInbound(request);
+    Assert.assertSame(request, m_channel.readInbound());
+    request.release();
+  }
+
+  @Test
+  public void rateLimitedPreflightIsAnsweredWithRetryAfter() throws IOException {
+    start("cors.preflight.rate.limit", "0.01", "cors.preflight.rate.burst", "1");
+
+    m_channel.writeInbound(preflight("/api"));
+    FullHttpResponse written = m_channel.readOutbound();
+    Assert.assertEquals(HttpResponseStatus.NO_CONTENT, written.status());
+    written.release();
+
+    m_channel.writeInbound(preflight("/api"));
+    written = m_channel.readOutbound();
+    Assert.assertEquals(HttpResponseStatus.TOO_MANY_REQUESTS, written.status());
+    Assert.assertEquals("100", written.headers().get("Retry-After"));
+    written.release();
+  }
+
+  @Test
+  public void stoppedRequestWaitsForEarlierResponses() {
+    FullHttpRequest first = get("/api", "http://www.example.com");
+    m_channel.writeInbound(first);
+    m_channel.writeInbound(preflight("/api"));
+
+    Assert.assertSame(first, m_channel.readInbound());
+    Assert.assertNull(m_channel.readInbound());
+    first.release();
+
+    // The preflight's answer must not overtake the response to the request before it
+    Assert.assertNull(m_channel.readOutbound());
+
+    HttpResponse head = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+    m_channel.writeOutbound(head);
+    Assert.assertSame(head, m_channel.readOutbound());
+    Assert.assertEquals("http://www.example.com", head.headers().get("Access-Control-Allow-Origin"));
+    Assert.assertNull(m_channel.readOutbound());
+
+    LastHttpContent body = new DefaultLastHttpContent();
+    m_channel.writeOutbound(body);
+    Assert.assertSame(body, m_channel.readOutbound());
+
+    FullHttpResponse written = m_channel.readOutbound();
+    Assert.assertEquals(HttpResponseStatus.NO_CONTENT, written.status());
+    written.release();
+
+    // With nothing outstanding, a stopped request is answered at once
+    m_channel.writeInbound(preflight("/api"));
+    written = m_channel.readOutbound();
+    Assert.assertEquals(HttpResponseStatus.NO_CONTENT, written.status());
+    written.release();
+  }
+
+  @Test
+  public void connectionIsClosedAfterAnAnswerUnlessKeptAlive() {
+    FullHttpRequest request = preflight("/api");
+    m_channel.writeInbound(request);
+
+    FullHttpResponse written = m_channel.readOutbound();
+    Assert.assertNull(written.headers().get("Connection"));
+    Assert.assertTrue(m_channel.isOpen());
+    written.release();
+
+    request = preflight("/api");
+    request.headers().set("Connection", "close");
+    m_channel.writeInbound(request);
+
+    written = m_channel.readOutbound();
+    Assert.assertEquals("close", written.headers().get("Connection"));
+    Assert.assertFalse(m_channel.isOpen());
+    written.release();
+  }
+
+  @Test
+  public void http10RequestsAreKeptAliveOnlyOnRequest() {
+    FullHttpRequest request = preflight("/api");
+    request.setProtocolVersion(HttpVersion.HTTP_1_0);
+    request.headers().set("Connection", "keep-alive");
+    m_channel.writeInbound(request);
+
+    FullHttpResponse written = m_channel.readOutbound();
+    Assert.assertEquals(HttpVersion.HTTP_1_0, written.protocolVersion());
+    Assert.assertEquals("keep-alive", written.headers().get("Connection"));
+    Assert.assertTrue(m_channel.isOpen());
+    written.release();
+
+    request = preflight("/api");
+    request.setProtocolVersion(HttpVersion.HTTP_1_0);
+    m_channel.writeInbound(request);
+
+    written = m_channel.readOutbound();
+    Assert.assertFalse(m_channel.isOpen());
+    written.release();
+  }
+
+  private static FullHttpRequest get(String uri, String origin) {
+    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+    request.headers().set("Origin", origin);
+    return request;
+  }
+
+  private static FullHttpRequest preflight(String uri) {
+    FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.OPTIONS, uri);
+    request.headers().set("Origin", "http://www.example.com");
+    request.headers().set("Access-Control-Request-Method", "PUT");
+    return request;
+  }
+
+  @After
+  public void after() {
+    m_channel.finishAndReleaseAll();
+    m_engine.destroy();
+  }
+}
@@ -0,0 +1,355 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.ServletException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+* Runs millions of mixed requests through one CorsFilter from many threads at once, and checks
+* every verdict.
+*
+* The filter is configured from a file holding one of two policies, A or B. Each request has a
+* known response under each, and a response that matches neither, such as one with A's origin
+* decision but B's methods, means a thread saw a partly built or partly replaced policy. Every
+* header the policies set differs between them, down to the policy version.
+*
+* Virtual threads are created by reflection, so the suite builds for Java 8 and skips those
+* tests on runtimes without them. Sizes are set with the stress.requests, stress.reload.seconds
+* and stress.scaling.efficiency system properties.
+*/
+public class CorsFilterStressTest {
+  private static final long REQUESTS = Long.getLong("stress.requests", 2000000);
+  private static final long RELOAD_SECONDS = Long.getLong("stress.reload.seconds", 5);
+  private static final double SCALING_EFFICIENCY =
+    Double.parseDouble(System.getProperty("stress.scaling.efficiency", "0.6"));
+
+  private static final int CORES = Runtime.getRuntime().availableProcessors();
+  private static final int PLATFORM_THREADS = Math.max(4, 2 * CORES);
+  private static final int VIRTUAL_THREADS = 1000;
+
+  private static final String POLICY_A =
+    "cors.allowed.origins=https://a.example.com,https://both.example.com\n"
+    + "cors.allowed.methods=GET,PUT\n"
+    + "cors.allowed.headers=X-A\n"
+    + "cors.exposed.headers=X-Total-A\n"
+    + "cors.support.credentials=true\n"
+    + "cors.preflight.maxage=10\n"
+    + "cors.version=a1\n";
+
+  private static final String POLICY_B =
+    "cors.allowed.origins=https://b.example.com,https://both.example.com\n"
+    + "cors.allowed.methods=GET,DELETE\n"
+    + "cors.allowed.headers=X-B\n"
+    + "cors.exposed.headers=X-Total-B\n"
+    + "cors.support.credentials=false\n"
+    + "cors.preflight.maxage=20\n"
+    + "cors.version=b1\n";
+
+  /**
+  * A request, and the response it gets under each policy, as summarised by describe().
+  */
+  private static final class Case {
+    final StubHttpServletRequest request;
+    final String underA;
+    final String underB;
+
+    Case(StubHttpServletRequest request, String underA, String underB) {
+      this.request = request;
+      this.underA = underA;
+      this.underB = underB;
+    }
+  }
+
+  private static final Case[] CASES = {
+    new Case(new StubHttpServletRequest("GET", "/api/items"),
+      "200 pass", "200 pass"),
+    new Case(new StubHttpServletRequest("GET", "/api/items", "Origin", "https://both.example.com"),
+      "200 pass origin=https://both.example.com credentials=true expose=X-Total-A,X-CORS-Policy-Version version=a1",
+      "200 pass origin=https://both.example.com expose=X-Total-B,X-CORS-Policy-Version version=b1"),
+    new Case(new StubHttpServletRequest("GET", "/api/items", "Origin", "https://a.example.com"),
+      "200 pass origin=https://a.example.com credentials=true expose=X-Total-A,X-CORS-Policy-Version version=a1",
+      "403 stop"),
+    new Case(new StubHttpServletRequest("GET", "/api/items", "Origin", "https://evil.example.net"),
+      "403 stop", "403 stop"),
+    new Case(new StubHttpServletRequest("OPTIONS", "/api/items", "Origin", "https://both.example.com",
+        "Access-Control-Request-Method", "PUT", "Access-Control-Request-Headers", "x-a"),
+      "204 stop origin=https://both.example.com credentials=true methods=GET,PUT headers=X-A maxage=10 version=a1",
+      "403 stop"),
+    new Case(new StubHttpServletRequest("OPTIONS", "/api/items", "Origin", "https://both.example.com",
+        "Access-Control-Request-Method", "DELETE", "Access-Control-Request-Headers", "x-b"),
+      "403 stop",
+      "204 stop origin=https://both.example.com methods=GET,DELETE headers=X-B maxage=20 version=b1"),
+    new Case(new StubHttpServletRequest("OPTIONS", "/api/items", "Origin", "https://evil.example.net",
+        "Access-Control-Request-Method", "GET"),
+      "403 stop", "403 stop")
+  };
+
+  @Rule
+  public TemporaryFolder m_tmp = new TemporaryFolder();
+
+  private File m_configFile;
+  private CorsFilter m_filter;
+
+  /**
+  * What the workers saw: how many responses matched each policy, and the first that matched
+  * neither.
+  */
+  private final AtomicLong m_matchedA = new AtomicLong();
+  private final AtomicLong m_matchedB = new AtomicLong();
+  private final AtomicLong m_mismatches = new AtomicLong();
+  private final AtomicReference<String> m_firstMismatch = new AtomicReference<String>();
+
+  /**
+  * Summarises the parts of a response that the policies decide.
+  */
+  private static String describe(StubHttpServletResponse res, boolean passed) {
+    StringBuilder s = new StringBuilder();
+    s.append(res.getStatus()).append(passed ? " pass" : " stop");
+    append(s, "origin", res.getHeader("Access-Control-Allow-Origin"));
+    append(s, "credentials", res.getHeader("Access-Control-Allow-Credentials"));
+    append(s, "methods", res.getHeader("Access-Control-Allow-Methods"));
+    append(s, "headers", res.getHeader("Access-Control-Allow-Headers"));
+    append(s, "expose", res.getHeader("Access-Control-Expose-Headers"));
+    append(s, "maxage", res.getHeader("Access-Control-Max-Age"));
+    append(s, "version", res.getHeader(CorsPolicy.VERSION_HEADER));
+    return s.toString();
+  }
+
+  private static void append(StringBuilder s, String label, String value) {
+    if (value != null) {
+      s.append(' ').append(label).append('=').append(value);
+    }
+  }
+
+  /**
+  * Returns an executor that starts a virtual thread per task, or null if the runtime has none.
+  */
+  private static ExecutorService virtualThreadExecutor() {
+    try {
+      return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException ex) {
+      return null;
+    } catch (InvocationTargetException ex) {
+      // A preview feature that isn't enabled
+      return null;
+    } catch (IllegalAccessException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private void writeConfig(String contents) throws IOException {
+    Path tmp = Files.createTempFile(m_tmp.getRoot().toPath(), "cors", ".tmp");
+    Files.write(tmp, (contents + "cors.enforce.actual=true\ncors.enforce.preflight=true\n"
+      + "cors.preflight.terminate=true\n").getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, m_configFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Before
+  public void before() throws IOException, ServletException {
+    m_configFile = new File(m_tmp.getRoot(), "cors.properties");
+    writeConfig(POLICY_A);
+
+    m_filter = new CorsFilter();
+    m_filter.init(new StubFilterConfig("CorsFilter")
+      .set("cors.config.file", m_configFile.getPath())
+      .set("cors.jmx.enabled", "false"));
+  }
+
+  @After
+  public void after() {
+    m_filter.destroy();
+  }
+
+  /**
+  * Returns a task that sends requests, cycling through the cases from a different starting
+  * point for each task, until it has sent count or stop is set.
+  */
+  private Runnable worker(final int id, final long count, final AtomicBoolean stop) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        StubHttpServletResponse res = new StubHttpServletResponse();
+        StubFilterChain chain = new StubFilterChain();
+
+        for (long i = 0; i < count && !stop.get(); ++i) {
+          Case c = CASES[(int)((id + i) % CASES.length)];
+          res.reset();
+
+          long before = chain.count();
+          try {
+            m_filter.doFilter(c.request, res, chain);
+          } catch (IOException | ServletException ex) {
+            throw new IllegalStateException(ex);
+          }
+
+          String response = describe(res, chain.count() != before);
+          if (response.equals(c.underA)) {
+            if (!c.underA.equals(c.underB)) {
+              m_matchedA.incrementAndGet();
+            }
+          } else if (response.equals(c.underB)) {
+            m_matchedB.incrementAndGet();
+          } else {
+            m_mismatches.incrementAndGet();
+            m_firstMismatch.compareAndSet(null, c.request.getMethod() + " "
+              + c.request.getHeader("Origin") + " got \"" + response + "\"");
+          }
+        }
+      }
+    };
+  }
+
+  /**
+  * Splits the requests between tasks on the executor, waits for them, and returns the
+  * requests per second.
+  */
+  private double run(ExecutorService executor, int tasks, long requests, AtomicBoolean stop) throws Exception {
+    List<Future<?>> futures = new ArrayList<Future<?>>();
+    long start = System.nanoTime();
+
+    for (int i = 0; i < tasks; ++i) {
+      long count = requests / tasks + (i < requests % tasks ? 1 : 0);
+      futures.add(executor.submit(worker(i, count, stop)));
+    }
+
+    for (Future<?> future : futures) {
+      future.get();
+    }
+
+    long elapsed = System.nanoTime() - start;
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    return requests * 1e9 / elapsed;
+  }
+
+  private void assertNoMismatches() {
+    Assert.assertEquals("Responses matching neither policy, first: " + m_firstMismatch.get(),
+      0, m_mismatches.get());
+  }
+
+  @Test
+  public void platformThreads() throws Exception {
+    double throughput = run(Executors.newFixedThreadPool(PLATFORM_THREADS), PLATFORM_THREADS, REQUESTS,
+      new AtomicBoolean());
+
+    System.out.println(String.format("%d platform threads: %.0f requests/s", PLATFORM_THREADS, throughput));
+    assertNoMismatches();
+    Assert.assertEquals("Responses matching policy B", 0, m_matchedB.get());
+  }
+
+  @Test
+  public void virtualThreads() throws Exception {
+    ExecutorService executor = virtualThreadExecutor();
+    Assume.assumeNotNull(executor);
+
+    double throughput = run(executor, VIRTUAL_THREADS, REQUESTS, new AtomicBoolean());
+
+    System.out.println(String.format("%d virtual threads: %.0f requests/s", VIRTUAL_THREADS, throughput));
+    assertNoMismatches();
+    Assert.assertEquals("Responses matching policy B", 0, m_matchedB.get());
+  }
+
+  /**
+  * Swaps the policy back and forth while requests run. Every response must come wholly from
+  * one policy or the other, and both must be seen.
+  */
+  @Test
+  public void reconfiguration() throws Exception {
+    final AtomicBoolean stop = new AtomicBoolean();
+
+    ExecutorService virtual = virtualThreadExecutor();
+    final ExecutorService executor = virtual != null ? virtual : Executors.newFixedThreadPool(PLATFORM_THREADS);
+    final int tasks = virtual != null ? VIRTUAL_THREADS : PLATFORM_THREADS;
+    final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+    Thread load = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          CorsFilterStressTest.this.run(executor, tasks, Long.MAX_VALUE, stop);
+        } catch (Exception ex) {
+          failure.set(ex);
+        }
+      }
+    });
+
+    load.start();
+
+    // The watcher waits for changes to settle, so give each policy time to be picked up
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RELOAD_SECONDS);
+    boolean useB = true;
+    while (System.nanoTime() - deadline < 0) {
+      writeConfig(useB ? POLICY_B : POLICY_A);
+      useB = !useB;
+      Thread.sleep(250);
+    }
+
+    stop.set(true);
+    load.join();
+
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+
+    System.out.println(String.format("Reconfiguration: %d responses under A, %d under B",
+      m_matchedA.get(), m_matchedB.get()));
+    assertNoMismatches();
+    Assert.assertTrue("No responses under policy A", m_matchedA.get() > 0);
+    Assert.assertTrue("No responses under policy B", m_matchedB.get() > 0);
+  }
+
+  /**
+  * Compares the throughput of one thread with that of one thread per core, and fails if the
+  * efficiency is below stress.scaling.efficiency. Skipped on single-core machines.
+  */
+  @Test
+  public void throughputScalesWithCores() throws Exception {
+    Assume.assumeTrue("Needs more than one core", CORES > 1);
+
+    long perThread = REQUESTS / CORES;
+
+    // Warm up, so the single-threaded run isn't measuring the interpreter
+    run(Executors.newFixedThreadPool(CORES), CORES, perThread * CORES, new AtomicBoolean());
+
+    double one = run(Executors.newFixedThreadPool(1), 1, perThread, new AtomicBoolean());
+    double all = run(Executors.newFixedThreadPool(CORES), CORES, perThread * CORES, new AtomicBoolean());
+    double efficiency = all / one / CORES;
+
+    System.out.println(String.format("1 thread: %.0f requests/s, %d threads: %.0f requests/s, efficiency %.2f",
+      one, CORES, all, efficiency));
+    assertNoMismatches();
+    Assert.assertTrue("Scaling efficiency " + efficiency + " is below " + SCALING_EFFICIENCY,
+      efficiency >= SCALING_EFFICIENCY);
+  }
+}
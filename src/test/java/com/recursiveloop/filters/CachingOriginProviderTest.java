@@ -0,0 +1,246 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+* Verifies caching, negative caching, load shedding and lookup timeouts in
+* com.recursiveloop.filters.CachingOriginProvider.
+*/
+public class CachingOriginProviderTest {
+  private static final long HOUR = TimeUnit.HOURS.toNanos(1);
+
+  /**
+  * Allows origins containing "allowed", optionally blocking until released or failing while any
+  * of its failures remain.
+  */
+  private static class FakeProvider implements OriginPolicyProvider {
+    final AtomicInteger calls = new AtomicInteger();
+    final AtomicInteger failures = new AtomicInteger();
+    volatile CountDownLatch release;
+
+    FakeProvider(CountDownLatch release) {
+      this.release = release;
+    }
+
+    @Override
+    public void init(Map<String, String> params) {}
+
+    @Override
+    public boolean isAllowed(String origin) throws InterruptedException {
+      calls.incrementAndGet();
+      if (failures.getAndDecrement() > 0) {
+        throw new IllegalStateException("Provider unavailable");
+      }
+
+      CountDownLatch latch = release;
+      if (latch != null) {
+        latch.await();
+      }
+
+      return origin.contains("allowed");
+    }
+
+    @Override
+    public void destroy() {}
+  }
+
+  @Test
+  public void answersAreCached() {
+    FakeProvider provider = new FakeProvider(null);
+    CachingOriginProvider cache = new CachingOriginProvider(provider, HOUR, HOUR, 10, 10, 1, 4, HOUR);
+
+    try {
+      for (int i = 0; i < 5; ++i) {
+        Assert.assertTrue(cache.isAllowed("http://allowed.com"));
+        Assert.assertFalse(cache.isAllowed("http://denied.com"));
+      }
+
+      Assert.assertEquals(2, provider.calls.get());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void negativeCacheIsBounded() {
+    FakeProvider provider = new FakeProvider(null);
+    CachingOriginProvider cache = new CachingOriginProvider(provider, HOUR, HOUR, 10, 10, 1, 4, HOUR);
+
+    try {
+      for (int i = 0; i < 1000; ++i) {
+        cache.isAllowed("http://" + i + ".com");
+      }
+
+      Assert.assertTrue(cache.negativeSize() <= 10);
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void expiredAnswersAreLookedUpAgain() {
+    FakeProvider provider = new FakeProvider(null);
+    CachingOriginProvider cache = new CachingOriginProvider(provider, HOUR, 0, 10, 10, 1, 4, HOUR);
+
+    try {
+      cache.isAllowed("http://denied.com");
+      cache.isAllowed("http://denied.com");
+
+      Assert.assertEquals(2, provider.calls.get());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void concurrentMissesShareOneLookup() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    FakeProvider provider = new FakeProvider(release);
+    final CachingOriginProvider cache = new CachingOriginProvider(provider, HOUR, HOUR, 10, 10, 1, 4, HOUR);
+
+    try {
+      final AtomicInteger allowed = new AtomicInteger();
+      Thread[] threads = new Thread[4];
+
+      for (int i = 0; i < threads.length; ++i) {
+        threads[i] = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            if (cache.isAllowed("http://allowed.com")) {
+              allowed.incrementAndGet();
+            }
+          }
+        });
+
+        threads[i].start();
+      }
+
+      while (provider.calls.get() == 0) {
+        Thread.sleep(1);
+      }
+
+      Thread.sleep(50);
+      release.countDown();
+
+      for (Thread thread : threads) {
+        thread.join();
+      }
+
+      Assert.assertEquals(1, provider.calls.get());
+      Assert.assertEquals(threads.length, allowed.get());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test
+  public void lookupsBeyondTheLimitAreShed() throws InterruptedException {
+    CountDownLatch release = new CountDownLatch(1);
+    FakeProvider provider = new FakeProvider(release);
+    final CachingOriginProvider cache = new CachingOriginProvider(provider, HOUR, HOUR, 10, 10, 1, 1, HOUR);
+
+    try {
+      Thread blocked = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          cache.isAllowed("http://allowed-1.com");
+        }
+      });
+
+      blocked.start();
+
+      while (provider.calls.get() == 0) {
+        Thread.sleep(1);
+      }
+
+      Assert.assertEquals(CachingOriginProvider.Answer.UNKNOWN, cache.check("http://allowed-2.com"));
+      Assert.assertEquals(1, cache.shed());
+
+      release.countDown();
+      blocked.join();
+
+      Assert.assertTrue(cache.isAllowed("http://allowed-2.com"));
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void staleAnswersAreRefreshedInTheBackground() throws InterruptedException {
+    FakeProvider provider = new FakeProvider(null);
+    long ttl = TimeUnit.MILLISECONDS.toNanos(400);
+    CachingOriginProvider cache = new CachingOriginProvider(provider, ttl, ttl, 10, 10, 1, 4, HOUR);
+    CountDownLatch release = new CountDownLatch(1);
+
+    try {
+      Assert.assertTrue(cache.isAllowed("http://allowed.com"));
+
+      // Past three quarters of the time to live, the cached answer is served while the refresh,
+      // which blocks until released, runs on another thread
+      Thread.sleep(320);
+      provider.release = release;
+      Assert.assertTrue(cache.isAllowed("http://allowed.com"));
+
+      while (provider.calls.get() < 2) {
+        Thread.sleep(1);
+      }
+
+      Assert.assertTrue(cache.isAllowed("http://allowed.com"));
+      Assert.assertEquals(2, provider.calls.get());
+    } finally {
+      release.countDown();
+      cache.close();
+    }
+  }
+
+  @Test
+  public void failedLookupsAreNotCached() {
+    FakeProvider provider = new FakeProvider(null);
+    provider.failures.set(1);
+    CachingOriginProvider cache = new CachingOriginProvider(provider, HOUR, HOUR, 10, 10, 1, 4, HOUR);
+
+    try {
+      Assert.assertEquals(CachingOriginProvider.Answer.UNKNOWN, cache.check("http://allowed.com"));
+      Assert.assertEquals(CachingOriginProvider.Answer.ALLOWED, cache.check("http://allowed.com"));
+      Assert.assertEquals(CachingOriginProvider.Answer.ALLOWED, cache.check("http://allowed.com"));
+      Assert.assertEquals(2, provider.calls.get());
+    } finally {
+      cache.close();
+    }
+  }
+
+  @Test(timeout = 5000)
+  public void hungLookupsTimeOut() {
+    CountDownLatch release = new CountDownLatch(1);
+    FakeProvider provider = new FakeProvider(release);
+    long timeout = TimeUnit.MILLISECONDS.toNanos(50);
+    CachingOriginProvider cache = new CachingOriginProvider(provider, HOUR, HOUR, 10, 10, 1, 1, timeout);
+
+    try {
+      // The second request joins the hung lookup and times out too, and the lookup still holds
+      // the only permit, so a different origin is shed without waiting
+      Assert.assertEquals(CachingOriginProvider.Answer.UNKNOWN, cache.check("http://allowed-1.com"));
+      Assert.assertEquals(CachingOriginProvider.Answer.UNKNOWN, cache.check("http://allowed-1.com"));
+      Assert.assertEquals(CachingOriginProvider.Answer.UNKNOWN, cache.check("http://allowed-2.com"));
+      Assert.assertEquals(1, provider.calls.get());
+      Assert.assertEquals(1, cache.shed());
+    } finally {
+      release.countDown();
+      cache.close();
+    }
+  }
+}
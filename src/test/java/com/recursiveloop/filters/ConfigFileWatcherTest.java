@@ -0,0 +1,87 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+* Verifies that com.recursiveloop.filters.ConfigFileWatcher reports changes to its file only.
+*/
+public class ConfigFileWatcherTest {
+  @Test
+  public void reportsModification() throws IOException, InterruptedException {
+    Path dir = Files.createTempDirectory("cors");
+    Path file = dir.resolve("cors.properties");
+    Path other = dir.resolve("other.properties");
+    Files.write(file, "a=1".getBytes(StandardCharsets.UTF_8));
+
+    final CountDownLatch changed = new CountDownLatch(1);
+    ConfigFileWatcher watcher = new ConfigFileWatcher(file, new Runnable() {
+      @Override
+      public void run() {
+        changed.countDown();
+      }
+    });
+
+    try {
+      Files.write(other, "b=2".getBytes(StandardCharsets.UTF_8));
+      Assert.assertFalse(changed.await(500, TimeUnit.MILLISECONDS));
+
+      Files.write(file, "a=2".getBytes(StandardCharsets.UTF_8));
+      Assert.assertTrue(changed.await(30, TimeUnit.SECONDS));
+    } finally {
+      watcher.close();
+      Files.delete(file);
+      Files.delete(other);
+      Files.delete(dir);
+    }
+  }
+
+  @Test
+  public void burstOfWritesIsReportedOnce() throws IOException, InterruptedException {
+    Path dir = Files.createTempDirectory("cors");
+    Path file = dir.resolve("cors.properties");
+    Files.write(file, "a=0".getBytes(StandardCharsets.UTF_8));
+
+    final AtomicInteger changes = new AtomicInteger();
+    final CountDownLatch changed = new CountDownLatch(1);
+    ConfigFileWatcher watcher = new ConfigFileWatcher(file, new Runnable() {
+      @Override
+      public void run() {
+        changes.incrementAndGet();
+        changed.countDown();
+      }
+    });
+
+    try {
+      // Like an editor that truncates, then writes in pieces
+      for (int i = 1; i <= 5; ++i) {
+        Files.write(file, ("a=" + i).getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(10);
+      }
+
+      Assert.assertTrue(changed.await(30, TimeUnit.SECONDS));
+      Thread.sleep(500);
+      Assert.assertEquals(1, changes.get());
+    } finally {
+      watcher.close();
+      Files.delete(file);
+      Files.delete(dir);
+    }
+  }
+}
@@ -16,11 +16,24 @@ import org.junit.Test;
 import org.junit.Assert;
 import javax.servlet.ServletException;
 import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.FilterConfig;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 
 
 /**
@@ -34,6 +47,28 @@ public class CorsFilterTest {
   private HttpServletResponse m_response;
   private FilterChain m_chain;
 
+  /**
+  * Allows every origin, but fails while any of its failures remain.
+  */
+  public static class FlakyProvider implements OriginPolicyProvider {
+    static final AtomicInteger m_failures = new AtomicInteger();
+
+    @Override
+    public void init(Map<String, String> params) {}
+
+    @Override
+    public boolean isAllowed(String origin) throws IOException {
+      if (m_failures.getAndDecrement() > 0) {
+        throw new IOException("Provider unavailable");
+      }
+
+      return true;
+    }
+
+    @Override
+    public void destroy() {}
+  }
+
   private boolean containsOnly(String sA, String sB) {
     String[] sAItems = sA.trim().split("\\s*,\\s*");
     String[] sBItems = sB.trim().split("\\s*,\\s*");
@@ -43,6 +78,15 @@ public class CorsFilterTest {
     return Arrays.equals(sAItems, sBItems);
   }
 
+  /**
+  * Replaces the file's contents atomically, so the filter's watcher never sees a partial file.
+  */
+  private void writeFile(File file, String contents) throws IOException {
+    Path tmp = Files.createTempFile(file.getParentFile().toPath(), "cors", ".tmp");
+    Files.write(tmp, contents.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
   @Before
   public void before() {
     m_filter = new CorsFilter();
@@ -395,6 +439,883 @@ public class CorsFilterTest {
     Assert.assertTrue(containsOnly(stringArgs.getValue(), "some-other-header,my-header, some-header"));
   }
 
+  /**
+  * The configured origins and the Origin header are compared case-insensitively.
+  */
+  @Test
+  public void originCaseInsensitive() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn("http://www.Example.com");
+
+    when(m_request.getMethod()).thenReturn("PUT");
+    when(m_request.getHeader("Origin")).thenReturn("http://WWW.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "http://WWW.example.com");
+  }
+
+  /**
+  * Any origin in a large allowlist is matched.
+  */
+  @Test
+  public void originLargeAllowlist() throws IOException, ServletException {
+    StringBuilder origins = new StringBuilder();
+    for (int i = 0; i < 4000; ++i) {
+      origins.append("http://partner").append(i).append(".example.com, ");
+    }
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn(origins.toString());
+
+    when(m_request.getMethod()).thenReturn("PUT");
+    when(m_request.getHeader("Origin")).thenReturn("http://partner3999.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "http://partner3999.example.com");
+  }
+
+  /**
+  * A subdomain pattern matches subdomains at any depth, with the same scheme and port.
+  */
+  @Test
+  public void originWildcardSubdomain() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.origins"))
+      .thenReturn("https://*.tenant.example.com, http://*.example.org:8080");
+
+    m_filter.init(m_config);
+
+    String[] allowed = {
+      "https://a.tenant.example.com",
+      "https://a.b.Tenant.example.com",
+      "http://x.example.org:8080"
+    };
+
+    String[] rejected = {
+      "https://tenant.example.com",
+      "http://a.tenant.example.com",
+      "https://a.tenant.example.com:8443",
+      "https://atenant.example.com",
+      "http://x.example.org",
+      "https://evil.com"
+    };
+
+    for (String origin : allowed) {
+      HttpServletResponse response = mock(HttpServletResponse.class);
+      when(m_request.getMethod()).thenReturn("PUT");
+      when(m_request.getHeader("Origin")).thenReturn(origin);
+
+      m_filter.doFilter(m_request, response, m_chain);
+
+      verify(response).setHeader("Access-Control-Allow-Origin", origin);
+    }
+
+    for (String origin : rejected) {
+      HttpServletResponse response = mock(HttpServletResponse.class);
+      when(m_request.getMethod()).thenReturn("PUT");
+      when(m_request.getHeader("Origin")).thenReturn(origin);
+
+      m_filter.doFilter(m_request, response, m_chain);
+
+      verify(response, never()).setHeader(eq("Access-Control-Allow-Origin"), any(String.class));
+    }
+  }
+
+  /**
+  * Requested header names are matched case-insensitively, ignoring optional whitespace.
+  */
+  @Test
+  public void preflightHeaderList() throws IOException, ServletException {
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("put");
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn(" My-Header,\tSOME-HEADER ");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "www.example.com");
+  }
+
+  /**
+  * Preflights are evaluated against the default methods and headers when those parameters
+  * are absent.
+  */
+  @Test
+  public void preflightDefaults() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.methods")).thenReturn(null);
+    when(m_config.getInitParameter("cors.allowed.headers")).thenReturn(null);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("POST");
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn("content-type");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "www.example.com");
+  }
+
+  /**
+  * With cors.preflight.cache.size set, repeated preflights of the same shape are answered from
+  * the cache, including denials.
+  */
+  @Test
+  public void preflightCache() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.preflight.cache.size")).thenReturn("100");
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn("my-header, Some-Header");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn("my-header,some-header");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response, times(2)).setHeader("Access-Control-Allow-Origin", "www.example.com");
+    verify(m_response, times(2)).setHeader("Access-Control-Max-Age", "10");
+    Assert.assertEquals(1, m_filter.getPreflightCacheHits());
+    Assert.assertEquals(1, m_filter.getPreflightCacheMisses());
+
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn("unsupported-header");
+    m_filter.doFilter(m_request, response, m_chain);
+    m_filter.doFilter(m_request, response, m_chain);
+
+    verify(response, never()).setHeader(eq("Access-Control-Allow-Origin"), any(String.class));
+    Assert.assertEquals(2, m_filter.getPreflightCacheHits());
+    Assert.assertEquals(2, m_filter.getPreflightCacheMisses());
+  }
+
+  /**
+  * A preflight whose origin the provider failed to answer for is rejected but not cached, so it
+  * is approved once the provider recovers.
+  */
+  @Test
+  public void preflightCacheSkipsFailedProviderLookups() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.preflight.cache.size")).thenReturn("100");
+    when(m_config.getInitParameter("cors.origin.provider")).thenReturn(FlakyProvider.class.getName());
+    FlakyProvider.m_failures.set(1);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+    when(m_request.getHeader("Origin")).thenReturn("http://tenant.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+    verify(m_response, never()).setHeader(eq("Access-Control-Allow-Origin"), any(String.class));
+
+    m_filter.doFilter(m_request, m_response, m_chain);
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "http://tenant.example.com");
+    Assert.assertEquals(0, m_filter.getPreflightCacheHits());
+    Assert.assertEquals(2, m_filter.getPreflightCacheMisses());
+
+    m_filter.doFilter(m_request, m_response, m_chain);
+    Assert.assertEquals(1, m_filter.getPreflightCacheHits());
+  }
+
+  /**
+  * Cached preflights can't outlive the provider's answers, so a provider that doesn't cache its
+  * answers turns the preflight cache off.
+  */
+  @Test
+  public void preflightCacheIsCappedByProviderTtl() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.preflight.cache.size")).thenReturn("100");
+    when(m_config.getInitParameter("cors.origin.provider")).thenReturn(FlakyProvider.class.getName());
+    when(m_config.getInitParameter("cors.origin.provider.negative.ttl")).thenReturn("0");
+    FlakyProvider.m_failures.set(0);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+    when(m_request.getHeader("Origin")).thenReturn("http://tenant.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response, times(2)).setHeader("Access-Control-Allow-Origin", "http://tenant.example.com");
+    Assert.assertEquals(0, m_filter.getPreflightCacheHits());
+    Assert.assertEquals(0, m_filter.getPreflightCacheMisses());
+  }
+
+  /**
+  * With cors.preflight.terminate = true, an approved preflight is answered with 204 and never
+  * reaches the chain.
+  */
+  @Test
+  public void preflightTerminate() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.preflight.terminate")).thenReturn("true");
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn("my-header");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "www.example.com");
+    verify(m_response).setStatus(HttpServletResponse.SC_NO_CONTENT);
+    verify(m_chain, never()).doFilter(m_request, m_response);
+  }
+
+  /**
+  * With cors.preflight.terminate = true, a rejected preflight is still passed down the chain.
+  */
+  @Test
+  public void preflightTerminateRejected() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.preflight.terminate")).thenReturn("true");
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("BLAH");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response, never()).setStatus(anyInt());
+    verify(m_chain).doFilter(m_request, m_response);
+  }
+
+  /**
+  * With cors.enforce.preflight = true, a rejected preflight is answered with 403 and never
+  * reaches the chain.
+  */
+  @Test
+  public void enforcePreflight() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.enforce.preflight")).thenReturn("true");
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn("unsupported-header");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    verify(m_response, never()).setHeader(eq("Access-Control-Allow-Origin"), any(String.class));
+    verify(m_chain, never()).doFilter(m_request, m_response);
+  }
+
+  /**
+  * With cors.enforce.actual = true, an actual request from a disallowed origin is answered with
+  * 403 and never reaches the chain.
+  */
+  @Test
+  public void enforceActual() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.enforce.actual")).thenReturn("true");
+
+    when(m_request.getMethod()).thenReturn("PUT");
+    when(m_request.getHeader("Origin")).thenReturn("www.website.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    verify(m_chain, never()).doFilter(m_request, m_response);
+  }
+
+  /**
+  * Requests whose dispatched path begins with one of cors.enforce.exempt.paths are passed down
+  * the chain even when enforcement is on.
+  */
+  @Test
+  public void enforceExemptPath() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.enforce.actual")).thenReturn("true");
+    when(m_config.getInitParameter("cors.enforce.exempt.paths")).thenReturn("/public/, /health");
+
+    when(m_request.getMethod()).thenReturn("PUT");
+    when(m_request.getHeader("Origin")).thenReturn("www.website.com");
+    when(m_request.getServletPath()).thenReturn("/public/index.html");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response, never()).setStatus(anyInt());
+    verify(m_chain).doFilter(m_request, m_response);
+  }
+
+  /**
+  * An exempt prefix only covers whole path segments, and an empty item in the list exempts
+  * nothing.
+  */
+  @Test
+  public void enforceExemptPathMatchesWholeSegments() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.enforce.actual")).thenReturn("true");
+    when(m_config.getInitParameter("cors.enforce.exempt.paths")).thenReturn("/public/, , /health");
+
+    when(m_request.getMethod()).thenReturn("PUT");
+    when(m_request.getHeader("Origin")).thenReturn("www.website.com");
+    m_filter.init(m_config);
+
+    when(m_request.getServletPath()).thenReturn("/health");
+    m_filter.doFilter(m_request, m_response, m_chain);
+    when(m_request.getPathInfo()).thenReturn("/live");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response, never()).setStatus(anyInt());
+    verify(m_chain, times(2)).doFilter(m_request, m_response);
+
+    when(m_request.getServletPath()).thenReturn("/healthcheck-admin");
+    when(m_request.getPathInfo()).thenReturn(null);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    verify(m_chain, times(2)).doFilter(m_request, m_response);
+  }
+
+  /**
+  * Parameters in cors.config.file override the init parameters, and a reload picks up changes
+  * to the file.
+  */
+  @Test
+  public void configFileReload() throws IOException, ServletException {
+    File file = File.createTempFile("cors", ".properties");
+    file.deleteOnExit();
+
+    writeFile(file, "cors.allowed.origins = http://one.example.com\n");
+    when(m_config.getInitParameter("cors.config.file")).thenReturn(file.getPath());
+
+    when(m_request.getMethod()).thenReturn("PUT");
+    when(m_request.getHeader("Origin")).thenReturn("http://two.example.com");
+
+    m_filter.init(m_config);
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response, never()).setHeader(eq("Access-Control-Allow-Origin"), any(String.class));
+
+    writeFile(file, "cors.allowed.origins = http://one.example.com, http://two.example.com\n");
+    m_filter.reloadPolicy();
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "http://two.example.com");
+  }
+
+  /**
+  * An invalid config file on reload leaves the current policy in place.
+  */
+  @Test
+  public void configFileReloadInvalid() throws IOException, ServletException {
+    File file = File.createTempFile("cors", ".properties");
+    file.deleteOnExit();
+
+    writeFile(file, "cors.allowed.origins = http://one.example.com\n");
+    when(m_config.getInitParameter("cors.config.file")).thenReturn(file.getPath());
+
+    when(m_request.getMethod()).thenReturn("PUT");
+    when(m_request.getHeader("Origin")).thenReturn("http://one.example.com");
+
+    m_filter.init(m_config);
+
+    writeFile(file, "cors.allowed.origins = http://two.example.com\ncors.preflight.cache.size = lots\n");
+    m_filter.reloadPolicy();
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "http://one.example.com");
+  }
+
+  /**
+  * A reload that finishes after the filter is destroyed releases the policies it built rather than
+  * installing them.
+  */
+  @Test
+  public void configFileReloadAfterDestroy() throws IOException, ServletException {
+    File file = File.createTempFile("cors", ".properties");
+    file.deleteOnExit();
+
+    writeFile(file, "cors.allowed.origins = http://one.example.com\n");
+    when(m_config.getInitParameter("cors.config.file")).thenReturn(file.getPath());
+
+    int size = PolicyRegistry.size();
+    m_filter.init(m_config);
+    m_filter.destroy();
+
+    writeFile(file, "cors.allowed.origins = http://two.example.com\n");
+    m_filter.reloadPolicy();
+    Assert.assertEquals(size, PolicyRegistry.size());
+  }
+
+  /**
+  * Each outcome is counted, and the metrics are registered as an MBean until the filter is
+  * destroyed.
+  */
+  @Test
+  public void metrics() throws Exception {
+    when(m_config.getFilterName()).thenReturn("metricsTest");
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("PUT");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getHeader("Origin")).thenReturn("www.website.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("BLAH");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn("unsupported-header");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn("my-header");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    Assert.assertEquals(1, m_filter.getOutcomeCount(CorsOutcome.NO_ORIGIN));
+    Assert.assertEquals(1, m_filter.getOutcomeCount(CorsOutcome.ORIGIN_REJECTED));
+    Assert.assertEquals(1, m_filter.getOutcomeCount(CorsOutcome.ACTUAL_APPROVED));
+    Assert.assertEquals(1, m_filter.getOutcomeCount(CorsOutcome.PREFLIGHT_MISSING_METHOD));
+    Assert.assertEquals(1, m_filter.getOutcomeCount(CorsOutcome.METHOD_REJECTED));
+    Assert.assertEquals(1, m_filter.getOutcomeCount(CorsOutcome.HEADERS_REJECTED));
+    Assert.assertEquals(1, m_filter.getOutcomeCount(CorsOutcome.PREFLIGHT_APPROVED));
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("com.recursiveloop.filters:type=CorsFilter,context=\"/\",name=\"metricsTest\"");
+
+    Assert.assertEquals(1L, server.getAttribute(name, "ActualApproved"));
+    Assert.assertEquals(7L, server.getAttribute(name, "LatencyCount"));
+
+    m_filter.destroy();
+    Assert.assertFalse(server.isRegistered(name));
+  }
+
+  /**
+  * Origins in cors.allowed.origins.index are allowed in addition to cors.allowed.origins.
+  */
+  @Test
+  public void originIndex() throws IOException, ServletException {
+    Path index = Files.createTempFile("origins", ".idx");
+    OriginIndexBuilder.build(Arrays.asList("http://indexed.example.com"), index);
+
+    try {
+      when(m_config.getInitParameter("cors.allowed.origins.index")).thenReturn(index.toString());
+
+      m_filter.init(m_config);
+
+      when(m_request.getMethod()).thenReturn("PUT");
+      when(m_request.getHeader("Origin")).thenReturn("http://indexed.example.com");
+      m_filter.doFilter(m_request, m_response, m_chain);
+
+      when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+      m_filter.doFilter(m_request, m_response, m_chain);
+
+      when(m_request.getHeader("Origin")).thenReturn("www.website.com");
+      m_filter.doFilter(m_request, m_response, m_chain);
+
+      verify(m_response).setHeader("Access-Control-Allow-Origin", "http://indexed.example.com");
+      verify(m_response).setHeader("Access-Control-Allow-Origin", "www.example.com");
+      verify(m_response, never()).setHeader("Access-Control-Allow-Origin", "www.website.com");
+    } finally {
+      Files.deleteIfExists(index);
+    }
+  }
+
+  /**
+  * Origins from an origin provider are allowed in addition to cors.allowed.origins.
+  */
+  @Test
+  public void originProvider() throws IOException, ServletException {
+    Path file = Files.createTempFile("origins", ".txt");
+    Files.write(file, "# Tenants\nhttp://tenant.example.com\n".getBytes(StandardCharsets.UTF_8));
+
+    try {
+      when(m_config.getInitParameter("cors.origin.provider.file")).thenReturn(file.toString());
+
+      m_filter.init(m_config);
+
+      when(m_request.getMethod()).thenReturn("PUT");
+      when(m_request.getHeader("Origin")).thenReturn("http://Tenant.example.com");
+      m_filter.doFilter(m_request, m_response, m_chain);
+
+      when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+      m_filter.doFilter(m_request, m_response, m_chain);
+
+      when(m_request.getHeader("Origin")).thenReturn("http://other.example.com");
+      m_filter.doFilter(m_request, m_response, m_chain);
+
+      verify(m_response).setHeader("Access-Control-Allow-Origin", "http://Tenant.example.com");
+      verify(m_response).setHeader("Access-Control-Allow-Origin", "www.example.com");
+      verify(m_response, never()).setHeader("Access-Control-Allow-Origin", "http://other.example.com");
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+  * Requests are answered by the policy whose paths match the path they are dispatched by, not
+  * their raw URI, or by the global policy.
+  */
+  @Test
+  public void namedPolicies() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn("http://app.example.com");
+    when(m_config.getInitParameter("cors.policies")).thenReturn("public");
+    when(m_config.getInitParameter("cors.policy.public.paths")).thenReturn("/api/public");
+    when(m_config.getInitParameter("cors.policy.public.allowed.origins")).thenReturn("*");
+    when(m_config.getInitParameter("cors.policy.public.support.credentials")).thenReturn("false");
+    when(m_config.getInitParameterNames()).thenReturn(Collections.enumeration(Arrays.asList(
+      "cors.allowed.origins", "cors.policies", "cors.policy.public.paths",
+      "cors.policy.public.allowed.origins", "cors.policy.public.support.credentials")));
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getContextPath()).thenReturn("/app");
+    when(m_request.getHeader("Origin")).thenReturn("http://elsewhere.com");
+
+    when(m_request.getRequestURI()).thenReturn("/app/api/public/status");
+    when(m_request.getServletPath()).thenReturn("/api");
+    when(m_request.getPathInfo()).thenReturn("/public/status");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "http://elsewhere.com");
+    verify(m_response, never()).setHeader("Access-Control-Allow-Credentials", "true");
+
+    // The raw URI names the public policy's path, but the container dispatches it to /api/private
+    when(m_request.getRequestURI()).thenReturn("/app/api/public/..;x=1/private");
+    when(m_request.getPathInfo()).thenReturn("/private");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    Assert.assertEquals(1, m_filter.getOutcomeCount(CorsOutcome.ORIGIN_REJECTED));
+  }
+
+  /**
+  * Filters with the same configuration share a compiled policy, which outlives any one of them.
+  */
+  @Test
+  public void identicalFiltersSharePolicies() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.preflight.cache.size")).thenReturn("100");
+
+    CorsFilter other = new CorsFilter();
+    m_filter.init(m_config);
+    other.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+
+    m_filter.doFilter(m_request, m_response, m_chain);
+    other.doFilter(m_request, m_response, m_chain);
+
+    // The second filter's preflight is answered from the first filter's cache
+    Assert.assertEquals(1, other.getPreflightCacheHits());
+
+    other.destroy();
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    Assert.assertEquals(2, m_filter.getPreflightCacheHits());
+  }
+
+  /**
+  * Responses vary by origin, whether or not the request had one.
+  */
+  @Test
+  public void varyOrigin() throws IOException, ServletException {
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response, times(2)).setHeader("Vary", "Origin");
+  }
+
+  /**
+  * Origin is merged into an existing Vary header, and not added twice.
+  */
+  @Test
+  public void varyOriginMerged() throws IOException, ServletException {
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+    when(m_response.getHeaders("Vary")).thenReturn(Arrays.asList("Accept-Encoding", "Accept-Language"));
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Vary", "Accept-Encoding, Accept-Language, Origin");
+
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getHeaders("Vary")).thenReturn(Arrays.asList("accept-encoding, origin"));
+    m_filter.doFilter(m_request, response, m_chain);
+
+    verify(response, never()).setHeader(eq("Vary"), any(String.class));
+  }
+
+  /**
+  * Origin stays in Vary when the application replaces the header, but is not added to it when
+  * the application already varies on it.
+  */
+  @Test
+  public void varyOriginKeptWhenReplaced() throws IOException, ServletException {
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+
+    FilterChain chain = new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) {
+        ((HttpServletResponse)response).setHeader("Vary", "Accept-Encoding");
+      }
+    };
+
+    StubHttpServletResponse response = new StubHttpServletResponse();
+    m_filter.doFilter(m_request, response, chain);
+    Assert.assertEquals("Accept-Encoding, Origin", response.getHeader("Vary"));
+
+    chain = new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest request, ServletResponse response) {
+        ((HttpServletResponse)response).setHeader("Vary", "origin, Accept-Encoding");
+      }
+    };
+
+    response = new StubHttpServletResponse();
+    m_filter.doFilter(m_request, response, chain);
+    Assert.assertEquals("origin, Accept-Encoding", response.getHeader("Vary"));
+  }
+
+  /**
+  * With cors.wildcard.origin, every origin gets a literal * and responses don't vary.
+  */
+  @Test
+  public void wildcardOrigin() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn("*");
+    when(m_config.getInitParameter("cors.support.credentials")).thenReturn("false");
+    when(m_config.getInitParameter("cors.wildcard.origin")).thenReturn("true");
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("http://anywhere.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "*");
+    verify(m_response, never()).setHeader(eq("Vary"), any(String.class));
+  }
+
+  /**
+  * A literal * can't be combined with credentials or a restricted allowlist.
+  */
+  @Test(expected = ServletException.class)
+  public void wildcardOriginWithCredentials() throws ServletException {
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn("*");
+    when(m_config.getInitParameter("cors.wildcard.origin")).thenReturn("true");
+
+    m_filter.init(m_config);
+  }
+
+  /**
+  * Origins matching a cors.preflight.maxage.origins rule get that rule's max-age.
+  */
+  @Test
+  public void maxAgePerOrigin() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn("*");
+    when(m_config.getInitParameter("cors.preflight.maxage.origins"))
+      .thenReturn("http://app.example.com=86400, http://*.partner.com = 600");
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+
+    when(m_request.getHeader("Origin")).thenReturn("http://app.example.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getHeader("Origin")).thenReturn("http://eu.partner.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    when(m_request.getHeader("Origin")).thenReturn("http://other.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Max-Age", "86400");
+    verify(m_response).setHeader("Access-Control-Max-Age", "600");
+    verify(m_response).setHeader("Access-Control-Max-Age", "10");
+  }
+
+  /**
+  * With cors.preflight.echo.requested, a preflight is granted only what it asked for.
+  */
+  @Test
+  public void preflightEchoRequested() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.preflight.echo.requested")).thenReturn("true");
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+    when(m_request.getHeader("Access-Control-Request-Headers")).thenReturn(" my-header,,Some-Header ");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Methods", "PUT");
+    verify(m_response).setHeader("Access-Control-Allow-Headers", "my-header,Some-Header");
+  }
+
+  /**
+  * cors.version is sent on approved responses, and exposed to scripts.
+  */
+  @Test
+  public void policyVersion() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.version")).thenReturn("42");
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("X-CORS-Policy-Version", "42");
+
+    ArgumentCaptor<String> stringArgs = ArgumentCaptor.forClass(String.class);
+    verify(m_response).setHeader(eq("Access-Control-Expose-Headers"), stringArgs.capture());
+    Assert.assertTrue(containsOnly(stringArgs.getValue(),
+      "header-one, header-two, header-three, X-CORS-Policy-Version"));
+  }
+
+  /**
+  * An automatic version changes with the policy.
+  */
+  @Test
+  public void policyVersionAuto() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.version")).thenReturn("auto");
+
+    CorsFilter other = new CorsFilter();
+    m_filter.init(m_config);
+
+    when(m_config.getInitParameter("cors.preflight.maxage")).thenReturn("20");
+    other.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    other.doFilter(m_request, response, m_chain);
+    other.destroy();
+
+    ArgumentCaptor<String> first = ArgumentCaptor.forClass(String.class);
+    verify(m_response).setHeader(eq("X-CORS-Policy-Version"), first.capture());
+
+    ArgumentCaptor<String> second = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("X-CORS-Policy-Version"), second.capture());
+
+    Assert.assertEquals(16, first.getValue().length());
+    Assert.assertNotEquals(first.getValue(), second.getValue());
+  }
+
+  /**
+  * Preflights beyond an origin's rate limit are answered with 429 before being evaluated. Every
+  * spelling of an origin shares its limit.
+  */
+  @Test
+  public void preflightRateLimit() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn("http://www.example.com");
+    when(m_config.getInitParameter("cors.preflight.rate.limit")).thenReturn("0.01");
+    when(m_config.getInitParameter("cors.preflight.rate.burst")).thenReturn("2");
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+
+    for (String origin : new String[] {"http://www.example.com", "HTTP://WWW.Example.COM:80",
+      "http://www.example.com."}) {
+
+      when(m_request.getHeader("Origin")).thenReturn(origin);
+      m_filter.doFilter(m_request, m_response, m_chain);
+    }
+
+    verify(m_response).setStatus(429);
+    verify(m_response).setHeader("Retry-After", "100");
+    verify(m_chain, times(2)).doFilter(m_request, m_response);
+    Assert.assertEquals(1, m_filter.getOutcomeCount(CorsOutcome.PREFLIGHT_RATE_LIMITED));
+    Assert.assertEquals(2, m_filter.getOutcomeCount(CorsOutcome.PREFLIGHT_APPROVED));
+  }
+
+  /**
+  * Preflights for exempt paths are neither limited nor counted against the origin's limit.
+  */
+  @Test
+  public void exemptPreflightsAreNotRateLimited() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn("http://www.example.com");
+    when(m_config.getInitParameter("cors.preflight.rate.limit")).thenReturn("0.01");
+    when(m_config.getInitParameter("cors.preflight.rate.burst")).thenReturn("1");
+    when(m_config.getInitParameter("cors.enforce.exempt.paths")).thenReturn("/health");
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Origin")).thenReturn("http://www.example.com");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+
+    when(m_request.getServletPath()).thenReturn("/health");
+    for (int i = 0; i < 3; ++i) {
+      m_filter.doFilter(m_request, m_response, m_chain);
+    }
+
+    when(m_request.getServletPath()).thenReturn("/api");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response, never()).setStatus(429);
+    Assert.assertEquals(0, m_filter.getOutcomeCount(CorsOutcome.PREFLIGHT_RATE_LIMITED));
+    Assert.assertEquals(4, m_filter.getOutcomeCount(CorsOutcome.PREFLIGHT_APPROVED));
+  }
+
+  /**
+  * Origins are compared in canonical form, but the Origin header is echoed as it was sent.
+  */
+  @Test
+  public void originsAreCanonicalised() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.origins")).thenReturn("https://b\u00fccher.example:443");
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("GET");
+    when(m_request.getHeader("Origin")).thenReturn("https://XN--BCHER-KVA.example.");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Origin", "https://XN--BCHER-KVA.example.");
+  }
+
+  /**
+  * Configured lists are sent trimmed and without repeats, and preflights don't expose headers.
+  */
+  @Test
+  public void headerValuesAreNormalised() throws IOException, ServletException {
+    when(m_config.getInitParameter("cors.allowed.methods")).thenReturn(" PUT , GET,,PUT ");
+    when(m_config.getInitParameter("cors.allowed.headers")).thenReturn("my-header , My-Header,some-header");
+    when(m_config.getInitParameter("cors.exposed.headers")).thenReturn(" header-one,,HEADER-ONE ");
+
+    m_filter.init(m_config);
+
+    when(m_request.getMethod()).thenReturn("OPTIONS");
+    when(m_request.getHeader("Origin")).thenReturn("www.example.com");
+    when(m_request.getHeader("Access-Control-Request-Method")).thenReturn("PUT");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Allow-Methods", "PUT,GET");
+    verify(m_response).setHeader("Access-Control-Allow-Headers", "my-header,some-header");
+    verify(m_response, never()).setHeader(eq("Access-Control-Expose-Headers"), any(String.class));
+
+    when(m_request.getMethod()).thenReturn("GET");
+    m_filter.doFilter(m_request, m_response, m_chain);
+
+    verify(m_response).setHeader("Access-Control-Expose-Headers", "header-one");
+  }
+
   @After
   public void after() {
     m_filter.destroy();
@@ -0,0 +1,43 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+
+/**
+* Verifies the latency histogram of com.recursiveloop.filters.CorsMetrics.
+*/
+public class CorsMetricsTest {
+  @Test
+  public void percentiles() {
+    CorsMetrics metrics = new CorsMetrics(new CorsEngine());
+
+    Assert.assertEquals(0, metrics.getLatencyP50Nanos());
+
+    for (int i = 0; i < 990; ++i) {
+      metrics.recordLatency(100);
+    }
+
+    for (int i = 0; i < 10; ++i) {
+      metrics.recordLatency(5000);
+    }
+
+    metrics.recordLatency(0);
+    metrics.recordLatency(Long.MAX_VALUE);
+
+    Assert.assertEquals(1002, metrics.getLatencyCount());
+    Assert.assertEquals(128, metrics.getLatencyP50Nanos());
+    Assert.assertEquals(8192, metrics.getLatencyP999Nanos());
+
+    metrics.reset();
+    Assert.assertEquals(0, metrics.getLatencyCount());
+  }
+}
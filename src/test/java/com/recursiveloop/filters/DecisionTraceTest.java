@@ -0,0 +1,117 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.Assert;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+
+/**
+* Verifies sampling, filtering and lossless hand-off in com.recursiveloop.filters.DecisionTrace.
+*/
+public class DecisionTraceTest {
+  private Logger m_logger;
+  private List<LogRecord> m_records;
+  private Handler m_handler;
+
+  @Before
+  public void before() {
+    m_records = Collections.synchronizedList(new ArrayList<LogRecord>());
+    m_handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        m_records.add(record);
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    };
+
+    m_logger = Logger.getLogger(DecisionTrace.class.getName());
+    m_logger.setUseParentHandlers(false);
+    m_logger.addHandler(m_handler);
+  }
+
+  @After
+  public void after() {
+    m_logger.removeHandler(m_handler);
+    m_logger.setUseParentHandlers(true);
+  }
+
+  @Test
+  public void recordsSelectedOrigins() {
+    OriginMatcher origins = new OriginMatcher(new String[] { "https://*.partner.com" });
+    DecisionTrace trace = new DecisionTrace(16, 1.0, origins);
+
+    trace.record("https://app.partner.com", "PUT", "x-one", CorsOutcome.HEADERS_REJECTED);
+    trace.record("https://other.com", "PUT", null, CorsOutcome.ORIGIN_REJECTED);
+    trace.close();
+
+    Assert.assertEquals(1, m_records.size());
+
+    Object[] params = m_records.get(0).getParameters();
+    Assert.assertEquals("rejected", params[0]);
+    Assert.assertEquals("https://app.partner.com", params[1]);
+    Assert.assertEquals("PUT", params[2]);
+    Assert.assertEquals("x-one", params[3]);
+    Assert.assertEquals(CorsOutcome.HEADERS_REJECTED, params[4]);
+  }
+
+  @Test
+  public void zeroRateRecordsNothing() {
+    DecisionTrace trace = new DecisionTrace(16, 0.0, null);
+
+    for (int i = 0; i < 1000; ++i) {
+      trace.record("https://a.com", "GET", null, CorsOutcome.ACTUAL_APPROVED);
+    }
+
+    trace.close();
+
+    Assert.assertEquals(0, m_records.size());
+  }
+
+  @Test
+  public void concurrentProducersLoseNothingSilently() throws InterruptedException {
+    final DecisionTrace trace = new DecisionTrace(64, 1.0, null);
+    final int perThread = 20000;
+
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; ++t) {
+      threads[t] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; ++i) {
+            trace.record("https://a.com", "GET", null, CorsOutcome.ACTUAL_APPROVED);
+          }
+        }
+      });
+
+      threads[t].start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    trace.close();
+
+    Assert.assertEquals(threads.length * perThread, m_records.size() + trace.dropped());
+  }
+}
@@ -0,0 +1,61 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import static org.mockito.Mockito.*;
+
+import org.junit.Test;
+import org.junit.Assert;
+import org.mockito.InOrder;
+
+
+/**
+* Verifies the header values and writes of com.recursiveloop.filters.HeaderPlan.
+*/
+public class HeaderPlanTest {
+  @Test
+  public void listTrimsAndDeduplicates() {
+    Assert.assertEquals("X-One,X-Two", HeaderPlan.list(" X-One ,, x-one,X-Two,X-ONE ", true));
+    Assert.assertEquals("GET,get,POST", HeaderPlan.list("GET, get ,POST,GET", false));
+    Assert.assertEquals("", HeaderPlan.list(" , ", true));
+  }
+
+  @Test
+  public void emptyValuesAreDropped() {
+    HeaderPlan plan = new HeaderPlan(true, "A", "1", "B", "", "C", null, "D", "4");
+
+    Assert.assertEquals(3, plan.size());
+    Assert.assertEquals("1", plan.get("a"));
+    Assert.assertNull(plan.get("B"));
+    Assert.assertNull(plan.get("C"));
+  }
+
+  @Test
+  public void writesOriginThenFixedHeaders() {
+    CorsResponse res = mock(CorsResponse.class);
+
+    new HeaderPlan(true, "A", "1", "B", "2").writeTo(res, "https://example.com");
+
+    InOrder order = inOrder(res);
+    order.verify(res).setHeader(HeaderPlan.ALLOW_ORIGIN, "https://example.com");
+    order.verify(res).setHeader("A", "1");
+    order.verify(res).setHeader("B", "2");
+    verifyNoMoreInteractions(res);
+  }
+
+  @Test
+  public void fixedOrigin() {
+    CorsResponse res = mock(CorsResponse.class);
+
+    new HeaderPlan(false, HeaderPlan.ALLOW_ORIGIN, "*").writeTo(res, "https://example.com");
+
+    verify(res).setHeader(HeaderPlan.ALLOW_ORIGIN, "*");
+    verifyNoMoreInteractions(res);
+  }
+}
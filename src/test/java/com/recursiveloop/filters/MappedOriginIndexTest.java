@@ -0,0 +1,186 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+* Verifies that indexes written by com.recursiveloop.filters.OriginIndexBuilder are read back
+* correctly by com.recursiveloop.filters.MappedOriginIndex.
+*/
+public class MappedOriginIndexTest {
+  @Test
+  public void roundTrip() throws IOException {
+    List<String> origins = new ArrayList<String>();
+    for (int i = 0; i < 10000; ++i) {
+      origins.add("https://customer" + i + ".example.com");
+    }
+
+    origins.add("HTTP://Mixed.Example.com:8080");
+    origins.add("https://customer1.example.com");
+
+    Path file = Files.createTempFile("origins", ".idx");
+    try {
+      Assert.assertEquals(10001, OriginIndexBuilder.build(origins, file));
+
+      MappedOriginIndex index = MappedOriginIndex.open(file);
+      Assert.assertEquals(10001, index.size());
+
+      for (int i = 0; i < 10000; ++i) {
+        Assert.assertTrue(index.contains("https://customer" + i + ".example.com"));
+      }
+
+      Assert.assertTrue(index.contains("http://mixed.example.com:8080"));
+      Assert.assertTrue(index.contains("https://CUSTOMER42.example.com"));
+      Assert.assertFalse(index.contains("https://customer10000.example.com"));
+      Assert.assertFalse(index.contains("https://customer1.example.co"));
+      Assert.assertFalse(index.contains("https://c\u00fcstomer1.example.com"));
+      Assert.assertFalse(index.contains(""));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsWildcards() throws IOException {
+    Path file = Files.createTempFile("origins", ".idx");
+    try {
+      OriginIndexBuilder.build(Arrays.asList("https://*.example.com"), file);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherFiles() throws IOException {
+    Path file = Files.createTempFile("origins", ".txt");
+    try {
+      Files.write(file, "https://www.example.com\n".getBytes(StandardCharsets.UTF_8));
+      MappedOriginIndex.open(file);
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+  * Builds a small index, lets the caller damage its bytes, and expects opening it to fail.
+  */
+  private void assertCorruptionDetected(int position, int value) throws IOException {
+    Path file = Files.createTempFile("origins", ".idx");
+    try {
+      OriginIndexBuilder.build(Arrays.asList("https://a.example.com", "https://b.example.com"), file);
+
+      ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+      bytes.putInt(position, value);
+      Files.write(file, bytes.array());
+
+      try {
+        MappedOriginIndex.open(file);
+        Assert.fail("Opened a corrupt index");
+      } catch (IOException ex) {
+        Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Corrupt origin index"));
+      }
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  /**
+  * Returns the position of the offset field of the first used slot.
+  */
+  private int firstUsedOffset() throws IOException {
+    Path file = Files.createTempFile("origins", ".idx");
+    try {
+      OriginIndexBuilder.build(Arrays.asList("https://a.example.com", "https://b.example.com"), file);
+
+      ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+      for (int slot = 0; ; ++slot) {
+        int position = MappedOriginIndex.HEADER_SIZE + slot * MappedOriginIndex.SLOT_SIZE + 4;
+        if (bytes.getInt(position) != 0) {
+          return position;
+        }
+      }
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void rejectsEntryOffsetsOutsideTheFile() throws IOException {
+    assertCorruptionDetected(firstUsedOffset(), 1 << 20);
+    assertCorruptionDetected(firstUsedOffset(), -1);
+  }
+
+  @Test
+  public void rejectsFullSlotTables() throws IOException {
+    Path file = Files.createTempFile("origins", ".idx");
+    try {
+      OriginIndexBuilder.build(Arrays.asList("https://a.example.com"), file);
+
+      // Point every slot at the one entry, so no lookup could ever stop at an empty slot
+      ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+      int slots = bytes.getInt(8);
+      int offset = 0;
+      for (int slot = 0; slot < slots; ++slot) {
+        offset = Math.max(offset, bytes.getInt(MappedOriginIndex.HEADER_SIZE + slot * MappedOriginIndex.SLOT_SIZE + 4));
+      }
+
+      for (int slot = 0; slot < slots; ++slot) {
+        bytes.putInt(MappedOriginIndex.HEADER_SIZE + slot * MappedOriginIndex.SLOT_SIZE + 4, offset);
+      }
+
+      bytes.putInt(12, slots);
+      Files.write(file, bytes.array());
+
+      try {
+        MappedOriginIndex.open(file);
+        Assert.fail("Opened an index with no empty slot");
+      } catch (IOException ex) {
+        Assert.assertEquals("Corrupt origin index: no empty slot", ex.getMessage());
+      }
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  @Test
+  public void rejectsWrongEntryCounts() throws IOException {
+    assertCorruptionDetected(12, 5);
+  }
+
+  @Test
+  public void rejectsTruncatedFiles() throws IOException {
+    Path file = Files.createTempFile("origins", ".idx");
+    try {
+      OriginIndexBuilder.build(Arrays.asList("https://a.example.com", "https://b.example.com"), file);
+
+      byte[] bytes = Files.readAllBytes(file);
+      Files.write(file, Arrays.copyOf(bytes, bytes.length - 4));
+
+      try {
+        MappedOriginIndex.open(file);
+        Assert.fail("Opened a truncated index");
+      } catch (IOException ex) {
+        Assert.assertTrue(ex.getMessage(), ex.getMessage().startsWith("Corrupt origin index"));
+      }
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
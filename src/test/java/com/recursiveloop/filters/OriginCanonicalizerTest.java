@@ -0,0 +1,95 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+import java.util.Locale;
+
+
+/**
+* Verifies com.recursiveloop.filters.OriginCanonicalizer against the equivalences of RFC 6454.
+*/
+public class OriginCanonicalizerTest {
+  @Test
+  public void caseIsFolded() {
+    Assert.assertEquals("https://www.example.com", OriginCanonicalizer.compute("HTTPS://WWW.Example.COM"));
+  }
+
+  @Test
+  public void defaultPortsAreDropped() {
+    Assert.assertEquals("https://x.com", OriginCanonicalizer.compute("https://x.com:443"));
+    Assert.assertEquals("http://x.com", OriginCanonicalizer.compute("http://x.com:80"));
+    Assert.assertEquals("http://x.com:443", OriginCanonicalizer.compute("http://x.com:443"));
+    Assert.assertEquals("http://x.com:8080", OriginCanonicalizer.compute("http://x.com:08080"));
+  }
+
+  @Test
+  public void trailingDotsAreDropped() {
+    Assert.assertEquals("https://x.com", OriginCanonicalizer.compute("https://x.com."));
+    Assert.assertEquals("https://x.com:8443", OriginCanonicalizer.compute("https://x.com.:8443"));
+  }
+
+  @Test
+  public void internationalHostsBecomePunycode() {
+    Assert.assertEquals("https://xn--bcher-kva.example",
+      OriginCanonicalizer.compute("https://B\u00fccher.example"));
+    Assert.assertEquals("https://*.xn--bcher-kva.example",
+      OriginCanonicalizer.compute("https://*.b\u00fccher.example"));
+  }
+
+  @Test
+  public void ipv6LiteralsKeepTheirPort() {
+    Assert.assertEquals("http://[::1]:8080", OriginCanonicalizer.compute("http://[::1]:8080"));
+    Assert.assertEquals("https://[::1]", OriginCanonicalizer.compute("https://[::1]:443"));
+  }
+
+  @Test
+  public void otherValuesAreOnlyLowerCased() {
+    Assert.assertEquals("null", OriginCanonicalizer.compute("null"));
+    Assert.assertEquals("www.example.com", OriginCanonicalizer.compute("WWW.example.com"));
+    Assert.assertEquals("https://x.com/path", OriginCanonicalizer.compute("https://x.com/Path"));
+  }
+
+  @Test
+  public void resultsAreMemoised() {
+    String origin = "https://Memo.Example.com:443";
+    String first = OriginCanonicalizer.canonicalize(origin);
+
+    Assert.assertEquals("https://memo.example.com", first);
+    Assert.assertSame(first, OriginCanonicalizer.canonicalize(origin));
+    Assert.assertTrue(OriginCanonicalizer.memoSize() > 0);
+  }
+
+  @Test
+  public void memoIsBounded() {
+    for (int i = 0; i < 20000; ++i) {
+      OriginCanonicalizer.canonicalize("https://" + i + ".example.com");
+    }
+
+    Assert.assertTrue(OriginCanonicalizer.memoSize() <= 10000);
+  }
+
+  @Test
+  public void junkOriginsAreNotMemoised() {
+    StringBuilder host = new StringBuilder();
+    for (int i = 0; i < 300; ++i) {
+      host.append('A');
+    }
+
+    int size = OriginCanonicalizer.memoSize();
+
+    Assert.assertEquals("https://" + host.toString().toLowerCase(Locale.ENGLISH),
+      OriginCanonicalizer.canonicalize("https://" + host + ":443"));
+    Assert.assertEquals("not an origin", OriginCanonicalizer.canonicalize("Not An Origin"));
+    Assert.assertEquals("https://x.com:", OriginCanonicalizer.canonicalize("https://X.com:"));
+
+    Assert.assertEquals(size, OriginCanonicalizer.memoSize());
+  }
+}
@@ -0,0 +1,196 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+* Verifies sharing and reference counting in com.recursiveloop.filters.PolicyRegistry.
+*/
+public class PolicyRegistryTest {
+  private static volatile CountDownLatch m_initStarted;
+  private static volatile CountDownLatch m_initRelease;
+
+  /**
+  * An origin provider whose initialisation waits until the test releases it.
+  */
+  public static class BlockingProvider implements OriginPolicyProvider {
+    @Override
+    public void init(Map<String, String> params) throws InterruptedException {
+      m_initStarted.countDown();
+      m_initRelease.await();
+    }
+
+    @Override
+    public boolean isAllowed(String origin) {
+      return false;
+    }
+
+    @Override
+    public void destroy() {}
+  }
+
+  @Test
+  public void identicalConfigurationsShareOnePolicy() throws IOException {
+    int size = PolicyRegistry.size();
+
+    Map<String, String> one = new HashMap<String, String>();
+    one.put("cors.allowed.origins", "http://registry-test.com");
+    one.put("cors.trace.rate", "0.5");
+
+    Map<String, String> two = new HashMap<String, String>();
+    two.put("cors.allowed.origins", "http://registry-test.com");
+
+    PolicyRouter a = PolicyRegistry.acquire(one);
+    PolicyRouter b = PolicyRegistry.acquire(two);
+
+    Assert.assertSame(a, b);
+    Assert.assertEquals(size + 1, PolicyRegistry.size());
+
+    PolicyRegistry.release(a);
+    Assert.assertEquals(size + 1, PolicyRegistry.size());
+
+    PolicyRegistry.release(b);
+    Assert.assertEquals(size, PolicyRegistry.size());
+  }
+
+  @Test
+  public void differentConfigurationsAreKeptApart() throws IOException {
+    Map<String, String> one = new HashMap<String, String>();
+    one.put("cors.allowed.origins", "http://registry-test.com");
+
+    Map<String, String> two = new HashMap<String, String>();
+    two.put("cors.allowed.origins", "http://registry-test.com");
+    two.put("cors.support.credentials", "false");
+
+    PolicyRouter a = PolicyRegistry.acquire(one);
+    PolicyRouter b = PolicyRegistry.acquire(two);
+
+    try {
+      Assert.assertNotSame(a, b);
+    } finally {
+      PolicyRegistry.release(a);
+      PolicyRegistry.release(b);
+    }
+  }
+
+  @Test
+  public void fingerprintIgnoresOrderAndBoundaries() throws IOException {
+    Map<String, String> one = new HashMap<String, String>();
+    one.put("cors.allowed.methods", "GET");
+    one.put("cors.allowed.headers", "X-A");
+
+    Map<String, String> two = new HashMap<String, String>();
+    two.put("cors.allowed.headers", "X-A");
+    two.put("cors.allowed.methods", "GET");
+
+    Map<String, String> three = new HashMap<String, String>();
+    three.put("cors.allowed.methods", "GETX");
+    three.put("cors.allowed.headers", "-A");
+
+    Assert.assertEquals(PolicyRegistry.fingerprint(one), PolicyRegistry.fingerprint(two));
+    Assert.assertNotEquals(PolicyRegistry.fingerprint(one), PolicyRegistry.fingerprint(three));
+  }
+
+  @Test(timeout = 10000)
+  public void compilingDoesNotBlockOtherConfigurations() throws Exception {
+    m_initStarted = new CountDownLatch(1);
+    m_initRelease = new CountDownLatch(1);
+
+    final Map<String, String> slow = new HashMap<String, String>();
+    slow.put("cors.origin.provider", BlockingProvider.class.getName());
+
+    Map<String, String> fast = new HashMap<String, String>();
+    fast.put("cors.allowed.origins", "http://registry-test.com");
+    fast.put("cors.allowed.methods", "PATCH");
+
+    final AtomicReference<PolicyRouter> slowRouter = new AtomicReference<PolicyRouter>();
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          slowRouter.set(PolicyRegistry.acquire(slow));
+        } catch (IOException ex) {
+          throw new RuntimeException(ex);
+        }
+      }
+    });
+
+    thread.start();
+
+    try {
+      Assert.assertTrue(m_initStarted.await(5, TimeUnit.SECONDS));
+
+      // The slow configuration is still compiling, but doesn't hold the registry
+      PolicyRouter router = PolicyRegistry.acquire(fast);
+      PolicyRegistry.release(router);
+    } finally {
+      m_initRelease.countDown();
+      thread.join();
+    }
+
+    Assert.assertNotNull(slowRouter.get());
+    PolicyRegistry.release(slowRouter.get());
+  }
+
+  @Test(timeout = 10000)
+  public void concurrentCompilesOfOneConfigurationShareTheFirst() throws Exception {
+    m_initStarted = new CountDownLatch(2);
+    m_initRelease = new CountDownLatch(1);
+    int size = PolicyRegistry.size();
+
+    final Map<String, String> params = new HashMap<String, String>();
+    params.put("cors.origin.provider", BlockingProvider.class.getName());
+    params.put("cors.allowed.methods", "PUT");
+
+    final PolicyRouter[] routers = new PolicyRouter[2];
+    Thread[] threads = new Thread[routers.length];
+
+    for (int i = 0; i < threads.length; ++i) {
+      final int index = i;
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            routers[index] = PolicyRegistry.acquire(params);
+          } catch (IOException ex) {
+            throw new RuntimeException(ex);
+          }
+        }
+      });
+
+      threads[i].start();
+    }
+
+    try {
+      // Both threads are compiling at once
+      Assert.assertTrue(m_initStarted.await(5, TimeUnit.SECONDS));
+    } finally {
+      m_initRelease.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+    }
+
+    Assert.assertSame(routers[0], routers[1]);
+    Assert.assertEquals(size + 1, PolicyRegistry.size());
+
+    PolicyRegistry.release(routers[0]);
+    PolicyRegistry.release(routers[1]);
+    Assert.assertEquals(size, PolicyRegistry.size());
+  }
+}
@@ -0,0 +1,161 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.Assert;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+* Verifies path matching and parameter inheritance in com.recursiveloop.filters.PolicyRouter.
+*/
+public class PolicyRouterTest {
+  private PolicyRouter m_router;
+
+  /**
+  * Allows every origin, counting how many instances are initialised and destroyed.
+  */
+  public static class CountingProvider implements OriginPolicyProvider {
+    static final AtomicInteger m_inits = new AtomicInteger();
+    static final AtomicInteger m_destroys = new AtomicInteger();
+
+    @Override
+    public void init(Map<String, String> params) {
+      m_inits.incrementAndGet();
+    }
+
+    @Override
+    public boolean isAllowed(String origin) {
+      return true;
+    }
+
+    @Override
+    public void destroy() {
+      m_destroys.incrementAndGet();
+    }
+  }
+
+  @Before
+  public void before() throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("cors.allowed.origins", "http://global.com");
+    params.put("cors.policies", "public, tenant, admin");
+    params.put("cors.policy.public.paths", "/api/public, /static");
+    params.put("cors.policy.public.allowed.origins", "*");
+    params.put("cors.policy.public.support.credentials", "false");
+    params.put("cors.policy.tenant.paths", "/tenants/*/api");
+    params.put("cors.policy.tenant.allowed.origins", "http://tenant.com");
+    params.put("cors.policy.admin.paths", "/tenants/admin/api");
+    params.put("cors.policy.admin.allowed.origins", "http://admin.com");
+
+    m_router = PolicyRouter.compile(params);
+  }
+
+  @Test
+  public void prefixesMatchWholeSegments() {
+    Assert.assertTrue(select("/api/public").isOriginAllowed("http://any.com"));
+    Assert.assertTrue(select("/api/public/users/1").isOriginAllowed("http://any.com"));
+    Assert.assertTrue(select("/static//app.js").isOriginAllowed("http://any.com"));
+    Assert.assertFalse(select("/api/publicity").isOriginAllowed("http://any.com"));
+    Assert.assertFalse(select("/api").isOriginAllowed("http://any.com"));
+  }
+
+  @Test
+  public void literalSegmentsBeatWildcards() {
+    Assert.assertTrue(select("/tenants/acme/api/orders").isOriginAllowed("http://tenant.com"));
+    Assert.assertTrue(select("/tenants/admin/api").isOriginAllowed("http://admin.com"));
+    Assert.assertFalse(select("/tenants/admin/api").isOriginAllowed("http://tenant.com"));
+    Assert.assertTrue(select("/tenants/acme").isOriginAllowed("http://global.com"));
+  }
+
+  @Test
+  public void unknownPathsGetTheGlobalPolicy() {
+    Assert.assertTrue(m_router.select(null).isOriginAllowed("http://global.com"));
+    Assert.assertFalse(m_router.select(null).isOriginAllowed("http://any.com"));
+  }
+
+  @Test
+  public void siblingSegmentsAreToldApart() throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("cors.allowed.origins", "http://global.com");
+    params.put("cors.policies", "a,b");
+    params.put("cors.policy.a.allowed.origins", "http://a.com");
+    params.put("cors.policy.b.allowed.origins", "http://b.com");
+
+    // Aa and BB have the same String hash, so they share a slot in the children table
+    params.put("cors.policy.a.paths", "/x/Aa, /x/s1, /x/s3, /x/s5");
+    params.put("cors.policy.b.paths", "/x/BB, /x/s2, /x/s4, /x/s6");
+
+    PolicyRouter router = PolicyRouter.compile(params);
+    try {
+      Assert.assertTrue(router.select("/x/Aa/1").isOriginAllowed("http://a.com"));
+      Assert.assertTrue(router.select("/x/BB").isOriginAllowed("http://b.com"));
+      Assert.assertTrue(router.select("/x/s5").isOriginAllowed("http://a.com"));
+      Assert.assertTrue(router.select("/x/s6/").isOriginAllowed("http://b.com"));
+      Assert.assertTrue(router.select("/x/s7").isOriginAllowed("http://global.com"));
+      Assert.assertTrue(router.select("/x/A").isOriginAllowed("http://global.com"));
+    } finally {
+      router.close();
+    }
+  }
+
+  @Test
+  public void namedPoliciesInheritGlobalParameters() {
+    Assert.assertFalse(select("/static").supportCredentials());
+    Assert.assertTrue(select("/tenants/acme/api").supportCredentials());
+    Assert.assertEquals(4, m_router.policies().size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void conflictingPathsAreRejected() throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("cors.policies", "a,b");
+    params.put("cors.policy.a.paths", "/api/*");
+    params.put("cors.policy.b.paths", "/api/*/");
+
+    PolicyRouter.compile(params);
+  }
+
+  @Test
+  public void policiesWithTheSameProviderShareIt() throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("cors.origin.provider", CountingProvider.class.getName());
+    params.put("cors.policies", "a,b,c");
+    params.put("cors.policy.a.paths", "/a");
+    params.put("cors.policy.a.allowed.methods", "GET");
+    params.put("cors.policy.b.paths", "/b");
+    params.put("cors.policy.c.paths", "/c");
+    params.put("cors.policy.c.origin.provider.ttl", "10");
+
+    CountingProvider.m_inits.set(0);
+    CountingProvider.m_destroys.set(0);
+
+    PolicyRouter router = PolicyRouter.compile(params);
+    Assert.assertEquals(2, CountingProvider.m_inits.get());
+    Assert.assertTrue(router.select("/a").isOriginAllowed("http://any.com"));
+
+    router.close();
+    Assert.assertEquals(2, CountingProvider.m_destroys.get());
+  }
+
+  private CorsPolicy select(String path) {
+    return m_router.select(path);
+  }
+
+  @After
+  public void after() {
+    m_router.close();
+  }
+}
@@ -0,0 +1,38 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+
+/**
+* Verifies key normalisation and bounding of com.recursiveloop.filters.PreflightCache.
+*/
+public class PreflightCacheTest {
+  @Test
+  public void keyNormalisesHeaders() {
+    Assert.assertEquals(PreflightCache.key("http://a.com", "PUT", "X-One, x-two"),
+      PreflightCache.key("http://a.com", "PUT", "x-one,X-Two"));
+
+    Assert.assertNotEquals(PreflightCache.key("http://a.com", "PUT", null),
+      PreflightCache.key("http://b.com", "PUT", null));
+  }
+
+  @Test
+  public void sizeIsBounded() {
+    PreflightCache cache = new PreflightCache(10, 0);
+
+    for (int i = 0; i < 1000; ++i) {
+      cache.put(PreflightCache.key("http://" + i + ".com", "GET", null), PreflightVerdict.ORIGIN_REJECTED);
+    }
+
+    Assert.assertTrue(cache.size() <= 10);
+  }
+}
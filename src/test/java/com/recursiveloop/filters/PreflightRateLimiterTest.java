@@ -0,0 +1,90 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+* Verifies bursts, per-origin isolation and bounded state in
+* com.recursiveloop.filters.PreflightRateLimiter.
+*/
+public class PreflightRateLimiterTest {
+  @Test
+  public void burstIsAllowedThenLimited() {
+    PreflightRateLimiter limiter = new PreflightRateLimiter(0.001, 3, 100);
+
+    Assert.assertTrue(limiter.tryAcquire("http://a.com"));
+    Assert.assertTrue(limiter.tryAcquire("http://a.com"));
+    Assert.assertTrue(limiter.tryAcquire("http://a.com"));
+    Assert.assertFalse(limiter.tryAcquire("http://a.com"));
+
+    // Other origins have their own buckets
+    Assert.assertTrue(limiter.tryAcquire("http://b.com"));
+  }
+
+  @Test
+  public void tokensRefill() throws InterruptedException {
+    PreflightRateLimiter limiter = new PreflightRateLimiter(50, 1, 100);
+
+    Assert.assertTrue(limiter.tryAcquire("http://a.com"));
+    Assert.assertFalse(limiter.tryAcquire("http://a.com"));
+
+    Thread.sleep(40);
+    Assert.assertTrue(limiter.tryAcquire("http://a.com"));
+  }
+
+  @Test
+  public void stateIsBounded() {
+    PreflightRateLimiter limiter = new PreflightRateLimiter(0.001, 1, 10);
+
+    for (int i = 0; i < 1000; ++i) {
+      limiter.tryAcquire("http://" + i + ".com");
+    }
+
+    Assert.assertEquals(10, limiter.size());
+
+    // Origins beyond the bound share buckets, so most of a flood is refused
+    int allowed = 0;
+    for (int i = 1000; i < 2000; ++i) {
+      if (limiter.tryAcquire("http://" + i + ".com")) {
+        ++allowed;
+      }
+    }
+
+    Assert.assertTrue(allowed <= 64);
+  }
+
+  @Test
+  public void idleBucketsAreEvicted() throws InterruptedException {
+    PreflightRateLimiter limiter = new PreflightRateLimiter(1000, 1, 10);
+
+    for (int i = 0; i < 10; ++i) {
+      limiter.tryAcquire("http://" + i + ".com");
+    }
+
+    Thread.sleep(5);
+
+    Assert.assertTrue(limiter.tryAcquire("http://new.com"));
+    Assert.assertTrue(limiter.size() <= 10);
+    Assert.assertFalse(limiter.tryAcquire("http://new.com"));
+  }
+
+  @Test
+  public void noLimitByDefault() {
+    Map<String, String> params = new HashMap<String, String>();
+    Assert.assertNull(PreflightRateLimiter.fromParams(params));
+
+    params.put("cors.preflight.rate.limit", "2.5");
+    Assert.assertEquals("1", PreflightRateLimiter.fromParams(params).retryAfter());
+  }
+}
@@ -0,0 +1,61 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+
+/**
+* Verifies com.recursiveloop.filters.RequestPath.
+*/
+public class RequestPathTest {
+  @Test
+  public void normalPathsAreReturnedAsTheyAre() {
+    String path = "/api/items/1";
+    Assert.assertSame(path, RequestPath.normalize(path));
+    Assert.assertEquals("/api/items/", RequestPath.normalize("/api/items/?page=2"));
+    Assert.assertEquals("/api/.well-known", RequestPath.normalize("/api/.well-known#x"));
+    Assert.assertEquals("/", RequestPath.normalize("/"));
+  }
+
+  @Test
+  public void dotSegmentsAreResolved() {
+    Assert.assertEquals("/admin", RequestPath.normalize("/public/../admin"));
+    Assert.assertEquals("/api/x", RequestPath.normalize("/api/./x"));
+    Assert.assertEquals("/", RequestPath.normalize("/../../"));
+    Assert.assertEquals("/api/", RequestPath.normalize("/api/x/.."));
+  }
+
+  @Test
+  public void emptySegmentsAndParametersAreDropped() {
+    Assert.assertEquals("/api/x", RequestPath.normalize("//api///x"));
+    Assert.assertEquals("/api/x", RequestPath.normalize("/api;jsessionid=1/x;v=2"));
+    Assert.assertEquals("/admin", RequestPath.normalize("/public/..;x/admin"));
+  }
+
+  @Test
+  public void escapesAreDecoded() {
+    Assert.assertEquals("/admin", RequestPath.normalize("/%61dmin"));
+    Assert.assertEquals("/admin", RequestPath.normalize("/public/%2e%2E/admin"));
+    Assert.assertEquals("/b\u00fccher", RequestPath.normalize("/b%C3%BCcher"));
+    Assert.assertNull(RequestPath.normalize("/a%2Fb"));
+    Assert.assertNull(RequestPath.normalize("/a%5cb"));
+    Assert.assertNull(RequestPath.normalize("/a%2"));
+    Assert.assertNull(RequestPath.normalize("/a%zz"));
+  }
+
+  @Test
+  public void absoluteTargetsLoseTheirAuthority() {
+    Assert.assertEquals("/api/x", RequestPath.normalize("http://example.com/api/x?y"));
+    Assert.assertEquals("/", RequestPath.normalize("http://example.com?y=/z"));
+    Assert.assertNull(RequestPath.normalize("*"));
+    Assert.assertNull(RequestPath.normalize(null));
+  }
+}
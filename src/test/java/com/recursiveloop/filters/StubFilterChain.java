@@ -0,0 +1,33 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+
+/**
+* A FilterChain that counts how many requests reach it.
+*/
+public class StubFilterChain implements FilterChain {
+  private long m_count = 0;
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response) {
+    ++m_count;
+  }
+
+  /**
+  * Returns the number of requests passed down the chain. Not safe for concurrent use.
+  */
+  public long count() {
+    return m_count;
+  }
+}
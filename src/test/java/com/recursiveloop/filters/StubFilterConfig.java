@@ -0,0 +1,60 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+
+
+/**
+* A FilterConfig backed by a map of init parameters.
+*/
+public class StubFilterConfig implements FilterConfig {
+  private final String m_filterName;
+  private final Map<String, String> m_params = new HashMap<String, String>();
+
+  /**
+  * Creates a config with no init parameters.
+  */
+  public StubFilterConfig(String filterName) {
+    m_filterName = filterName;
+  }
+
+  /**
+  * Sets an init parameter and returns this, for chaining.
+  */
+  public StubFilterConfig set(String name, String value) {
+    m_params.put(name, value);
+    return this;
+  }
+
+  @Override
+  public String getFilterName() {
+    return m_filterName;
+  }
+
+  @Override
+  public ServletContext getServletContext() {
+    return null;
+  }
+
+  @Override
+  public String getInitParameter(String name) {
+    return m_params.get(name);
+  }
+
+  @Override
+  public Enumeration<String> getInitParameterNames() {
+    return Collections.enumeration(m_params.keySet());
+  }
+}
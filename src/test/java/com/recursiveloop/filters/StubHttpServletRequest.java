@@ -0,0 +1,279 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.BufferedReader;
+import java.security.Principal;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.AsyncContext;
+import javax.servlet.DispatcherType;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.Part;
+
+
+/**
+* A lightweight HttpServletRequest for benchmarks and stress tests, where a mock's bookkeeping
+* would swamp the cost of the filter.
+*
+* Only the method, URI and headers are supported. Header lookups are case-insensitive and do
+* not allocate.
+*/
+public class StubHttpServletRequest implements HttpServletRequest {
+  private final String m_method;
+  private final String m_contextPath;
+  private final String m_requestURI;
+  private final String[] m_headers;
+
+  /**
+  * Creates a request. Headers are given as alternating names and values.
+  */
+  public StubHttpServletRequest(String method, String requestURI, String... headers) {
+    m_method = method;
+    m_contextPath = "";
+    m_requestURI = requestURI;
+    m_headers = headers;
+  }
+
+  @Override
+  public String getHeader(String name) {
+    for (int i = 0; i + 1 < m_headers.length; i += 2) {
+      if (m_headers[i].equalsIgnoreCase(name)) {
+        return m_headers[i + 1];
+      }
+    }
+
+    return null;
+  }
+
+  @Override
+  public String getMethod() {
+    return m_method;
+  }
+
+  @Override
+  public String getContextPath() {
+    return m_contextPath;
+  }
+
+  @Override
+  public String getRequestURI() {
+    return m_requestURI;
+  }
+
+  @Override
+  public String getServletPath() {
+    return m_requestURI;
+  }
+
+  @Override
+  public String getPathInfo() {
+    return null;
+  }
+
+  @Override
+  public String getScheme() {
+    return "http";
+  }
+
+  @Override
+  public String getProtocol() {
+    return "HTTP/1.1";
+  }
+
+  @Override
+  public DispatcherType getDispatcherType() {
+    return DispatcherType.REQUEST;
+  }
+
+  @Override
+  public String getAuthType() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Cookie[] getCookies() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public long getDateHeader(String name) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Enumeration<String> getHeaders(String name) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Enumeration<String> getHeaderNames() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public int getIntHeader(String name) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getPathTranslated() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getQueryString() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getRemoteUser() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public boolean isUserInRole(String role) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Principal getUserPrincipal() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getRequestedSessionId() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public StringBuffer getRequestURL() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public HttpSession getSession(boolean create) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public HttpSession getSession() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public boolean isRequestedSessionIdValid() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public boolean isRequestedSessionIdFromCookie() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public boolean isRequestedSessionIdFromURL() { throw new UnsupportedOperationException(); }
+
+  @Override
+  @Deprecated
+  public boolean isRequestedSessionIdFromUrl() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public boolean authenticate(HttpServletResponse response) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void login(String username, String password) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void logout() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Collection<Part> getParts() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Part getPart(String name) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Object getAttribute(String name) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Enumeration<String> getAttributeNames() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getCharacterEncoding() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void setCharacterEncoding(String env) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public int getContentLength() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getContentType() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public ServletInputStream getInputStream() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getParameter(String name) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Enumeration<String> getParameterNames() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String[] getParameterValues(String name) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Map<String, String[]> getParameterMap() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getServerName() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public int getServerPort() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public BufferedReader getReader() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getRemoteAddr() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getRemoteHost() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void setAttribute(String name, Object o) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void removeAttribute(String name) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Locale getLocale() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Enumeration<Locale> getLocales() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public boolean isSecure() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public RequestDispatcher getRequestDispatcher(String path) { throw new UnsupportedOperationException(); }
+
+  @Override
+  @Deprecated
+  public String getRealPath(String path) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public int getRemotePort() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getLocalName() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getLocalAddr() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public int getLocalPort() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public ServletContext getServletContext() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public AsyncContext startAsync() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public AsyncContext startAsync(ServletRequest request, ServletResponse response) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean isAsyncStarted() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public boolean isAsyncSupported() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public AsyncContext getAsyncContext() { throw new UnsupportedOperationException(); }
+}
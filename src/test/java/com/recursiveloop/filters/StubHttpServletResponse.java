@@ -0,0 +1,194 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+
+/**
+* A lightweight HttpServletResponse for benchmarks and stress tests.
+*
+* Headers are kept in fixed arrays, so setting a header that has been set before does not
+* allocate. Call reset() between requests.
+*/
+public class StubHttpServletResponse implements HttpServletResponse {
+  private static final int MAX_HEADERS = 16;
+
+  private final String[] m_names = new String[MAX_HEADERS];
+  private final String[] m_values = new String[MAX_HEADERS];
+  private int m_headerCount = 0;
+  private int m_status = SC_OK;
+
+  @Override
+  public void setHeader(String name, String value) {
+    for (int i = 0; i < m_headerCount; ++i) {
+      if (m_names[i].equalsIgnoreCase(name)) {
+        m_values[i] = value;
+        return;
+      }
+    }
+
+    if (m_headerCount == MAX_HEADERS) {
+      throw new IllegalStateException("Too many headers");
+    }
+
+    m_names[m_headerCount] = name;
+    m_values[m_headerCount] = value;
+    ++m_headerCount;
+  }
+
+  @Override
+  public void addHeader(String name, String value) {
+    setHeader(name, value);
+  }
+
+  @Override
+  public String getHeader(String name) {
+    for (int i = 0; i < m_headerCount; ++i) {
+      if (m_names[i].equalsIgnoreCase(name)) {
+        return m_values[i];
+      }
+    }
+
+    return null;
+  }
+
+  @Override
+  public boolean containsHeader(String name) {
+    return getHeader(name) != null;
+  }
+
+  @Override
+  public void setStatus(int sc) {
+    m_status = sc;
+  }
+
+  @Override
+  @Deprecated
+  public void setStatus(int sc, String sm) {
+    m_status = sc;
+  }
+
+  @Override
+  public int getStatus() {
+    return m_status;
+  }
+
+  @Override
+  public void sendError(int sc, String msg) {
+    m_status = sc;
+  }
+
+  @Override
+  public void sendError(int sc) {
+    m_status = sc;
+  }
+
+  @Override
+  public boolean isCommitted() {
+    return false;
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < m_headerCount; ++i) {
+      m_names[i] = null;
+      m_values[i] = null;
+    }
+
+    m_headerCount = 0;
+    m_status = SC_OK;
+  }
+
+  @Override
+  public void addCookie(Cookie cookie) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String encodeURL(String url) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String encodeRedirectURL(String url) { throw new UnsupportedOperationException(); }
+
+  @Override
+  @Deprecated
+  public String encodeUrl(String url) { throw new UnsupportedOperationException(); }
+
+  @Override
+  @Deprecated
+  public String encodeRedirectUrl(String url) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void sendRedirect(String location) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void setDateHeader(String name, long date) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void addDateHeader(String name, long date) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void setIntHeader(String name, int value) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void addIntHeader(String name, int value) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Collection<String> getHeaders(String name) {
+    String value = getHeader(name);
+    return value == null ? Collections.<String>emptyList() : Collections.singletonList(value);
+  }
+
+  @Override
+  public Collection<String> getHeaderNames() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getCharacterEncoding() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public String getContentType() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public ServletOutputStream getOutputStream() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public PrintWriter getWriter() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void setCharacterEncoding(String charset) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void setContentLength(int len) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void setContentType(String type) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void setBufferSize(int size) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public int getBufferSize() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void flushBuffer() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void resetBuffer() { throw new UnsupportedOperationException(); }
+
+  @Override
+  public void setLocale(Locale loc) { throw new UnsupportedOperationException(); }
+
+  @Override
+  public Locale getLocale() { throw new UnsupportedOperationException(); }
+}
@@ -0,0 +1,110 @@
+// This file is property of Recursive Loop Ltd.
+//
+// Author: Rob Jinman
+// Web: http://recursiveloop.org
+// Copyright Recursive Loop Ltd 2015
+// Copyright Rob Jinman 2015
+
+
+package com.recursiveloop.filters;
+
+import org.junit.Test;
+import org.junit.Assert;
+
+
+/**
+* Verifies the tokenizer and case-insensitive lookups of com.recursiveloop.filters.TokenSet
+* and com.recursiveloop.filters.MethodSet.
+*/
+public class TokenSetTest {
+  @Test
+  public void containsIgnoresCase() {
+    TokenSet set = TokenSet.parse("Content-Type, X-Requested-With ,accept");
+
+    Assert.assertEquals(3, set.size());
+    Assert.assertTrue(set.contains("content-type"));
+    Assert.assertTrue(set.contains("ACCEPT"));
+    Assert.assertTrue(set.contains("x-requested-with"));
+    Assert.assertFalse(set.contains("x-requested"));
+  }
+
+  @Test
+  public void containsRegion() {
+    TokenSet set = TokenSet.parse("my-header");
+
+    Assert.assertTrue(set.contains("a,My-Header,b", 2, 11));
+    Assert.assertFalse(set.contains("a,My-Header,b", 2, 10));
+  }
+
+  @Test
+  public void containsAllTokenizes() {
+    TokenSet set = TokenSet.parse("some-header,some-other-header,my-header");
+
+    Assert.assertTrue(set.containsAll(""));
+    Assert.assertTrue(set.containsAll("my-header"));
+    Assert.assertTrue(set.containsAll(" My-Header ,\tsome-header,, some-other-header "));
+    Assert.assertFalse(set.containsAll("my-header, unsupported-header"));
+    Assert.assertFalse(set.containsAll("my-header some-header"));
+  }
+
+  @Test
+  public void duplicatesIgnored() {
+    TokenSet set = TokenSet.parse("a,A, a,,b");
+
+    Assert.assertEquals(2, set.size());
+  }
+
+  @Test
+  public void methodSet() {
+    MethodSet methods = new MethodSet("GET, post,PROPFIND");
+
+    Assert.assertTrue(methods.contains("GET"));
+    Assert.assertTrue(methods.contains("POST"));
+    Assert.assertTrue(methods.contains("propfind"));
+    Assert.assertFalse(methods.contains("PUT"));
+    Assert.assertFalse(methods.contains("BLAH"));
+  }
+
+  @Test
+  public void foldsOnlyAsciiLetters() {
+    TokenSet set = TokenSet.parse("x-`,x-[,k");
+
+    Assert.assertTrue(set.contains("X-`"));
+    Assert.assertFalse(set.contains("x-@"));
+    Assert.assertFalse(set.contains("x-{"));
+    Assert.assertTrue(set.contains("K"));
+    Assert.assertFalse(set.contains("\u212a"));
+    Assert.assertTrue(set.containsAll(" X-` ,X-[,K"));
+    Assert.assertFalse(set.containsAll("x-`,x-@"));
+  }
+
+  @Test
+  public void collidingTokensAreKeptApart() {
+    // "a~" and "b_" have the same hash, so one is found only by probing past the other
+    TokenSet set = TokenSet.parse("a~,b_");
+
+    Assert.assertEquals(2, set.size());
+    Assert.assertEquals(0, set.indexOf("A~", 0, 2));
+    Assert.assertEquals(1, set.indexOf("B_", 0, 2));
+    Assert.assertTrue(set.containsAll("b_, a~"));
+    Assert.assertFalse(set.contains("c@"));
+  }
+
+  @Test
+  public void similarNamesFillTheTable() {
+    StringBuilder list = new StringBuilder();
+    for (char c = 'a'; c <= 'z'; ++c) {
+      list.append("x-header-").append(c).append(',');
+    }
+
+    TokenSet set = TokenSet.parse(list.toString());
+
+    Assert.assertEquals(26, set.size());
+    for (char c = 'a'; c <= 'z'; ++c) {
+      Assert.assertEquals(c - 'a', set.indexOf("X-Header-" + Character.toUpperCase(c), 0, 10));
+    }
+
+    Assert.assertFalse(set.contains("x-header-0"));
+    Assert.assertFalse(set.contains("x-header-"));
+  }
+}